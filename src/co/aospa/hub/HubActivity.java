@@ -33,6 +33,7 @@ import static co.aospa.hub.model.UpdateStatus.INSTALLATION_SUSPENDED;
 import static co.aospa.hub.model.UpdateStatus.LOCAL_UPDATE;
 import static co.aospa.hub.model.UpdateStatus.LOCAL_UPDATE_FAILED;
 import static co.aospa.hub.model.UpdateStatus.PREPARING;
+import static co.aospa.hub.model.UpdateStatus.INSUFFICIENT_STORAGE;
 
 import static co.aospa.hub.model.Version.TYPE_RELEASE;
 
@@ -68,6 +69,7 @@ import androidx.preference.PreferenceManager;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import co.aospa.hub.HubController.StatusListener;
+import co.aospa.hub.download.DownloadClient;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.StringGenerator;
 import co.aospa.hub.misc.Utils;
@@ -323,6 +325,12 @@ public class HubActivity extends AppCompatActivity implements View.OnClickListen
                 mButton.setVisibility(View.VISIBLE);
                 reportMessage(R.string.downloading_error_update_title);
                 break;
+            case INSUFFICIENT_STORAGE:
+                mHeaderStatus.setText(getResources().getString(R.string.updating_failed_title));
+                mButton.setText(R.string.button_try_again);
+                mButton.setVisibility(View.VISIBLE);
+                reportMessage(R.string.downloading_error_storage_title);
+                break;
             case PAUSED:
                 mHeaderStatus.setText(getResources().getString(R.string.downloading_paused_title));
                 mHeaderStatusStep.setText(!Version.isBuild(TYPE_RELEASE) ? 
@@ -525,7 +533,8 @@ public class HubActivity extends AppCompatActivity implements View.OnClickListen
                 String updateInfo = getResources().getString(R.string.install_update_dialog_message_info,
                         Version.getMajor(), update.getVersion());
                 try {
-                    if (Utils.isABUpdate(update.getFile())) {
+                    if (controller.canInstallStreaming(downloadId)
+                            || Utils.isABUpdate(update.getFile())) {
                         resId = R.string.install_update_dialog_message_ab;
                     } else {
                         resId = R.string.install_update_dialog_message;
@@ -627,6 +636,14 @@ public class HubActivity extends AppCompatActivity implements View.OnClickListen
                 if (Utils.isABDevice()) {
                     if (isBatteryLevelOk()) {
                         enforceBatteryReq().show();
+                    } else if (controller.canInstallStreaming(update.getDownloadId())) {
+                        // Installed right away, so confirmed like any install
+                        if (Utils.canInstall(getApplicationContext(), update)) {
+                            Objects.requireNonNull(
+                                    createDialog(1, update.getDownloadId())).show();
+                        } else {
+                            reportMessage(R.string.error_update_not_installable_snack);
+                        }
                     } else {
                         controller.startDownload(update.getDownloadId());
                     }
@@ -638,6 +655,7 @@ public class HubActivity extends AppCompatActivity implements View.OnClickListen
                 controller.pauseDownload(update.getDownloadId());
                 break;
             case DOWNLOAD_FAILED:
+            case INSUFFICIENT_STORAGE:
             case VERIFICATION_FAILED:
                 controller.startDownload(update.getDownloadId());
                 break;
@@ -648,7 +666,8 @@ public class HubActivity extends AppCompatActivity implements View.OnClickListen
                 UpdateInfo pausedUpdateInfo = controller.getUpdate(update.getDownloadId());
                 Update pausedUpdate = new Update(pausedUpdateInfo);
                 final boolean canResume = Utils.canInstall(getApplicationContext(), pausedUpdate) ||
-                        pausedUpdateInfo.getFile().length() == pausedUpdateInfo.getFileSize();
+                        DownloadClient.getDownloadedBytes(pausedUpdateInfo.getFile())
+                                == pausedUpdateInfo.getFileSize();
                 if (canResume) {
                     controller.resumeDownload(update.getDownloadId());
                 } else {
@@ -31,6 +31,8 @@ import co.aospa.hub.controller.ABUpdateController;
 import co.aospa.hub.controller.LocalUpdateController;
 import co.aospa.hub.controller.UpdateController;
 import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.NetworkMonitor;
+import co.aospa.hub.download.PeerCache;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.Utils;
 import co.aospa.hub.model.Update;
@@ -41,6 +43,7 @@ import co.aospa.hub.model.Version;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -75,7 +78,24 @@ public class HubController {
     private final List<StatusListener> mListeners = new ArrayList<>();
     private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
     private final Set<String> mVerifyingUpdates = new HashSet<>();
+    // Paused because of the network, resumed as soon as it allows it again
+    private final Set<String> mNetworkPausedDownloads = new HashSet<>();
+    private final Set<String> mPrefetchDownloads = new HashSet<>();
     private final SharedPreferences mPrefs;
+    private final NetworkMonitor mNetworkMonitor;
+    // The last network reported by the monitor, null until it reports one
+    private Boolean mNetworkAvailable;
+    private boolean mNetworkMetered;
+    private Boolean mNetworkUsable;
+    // Guarded by this, between the start of a streaming install and its result
+    private boolean mStreamingInstall;
+    // Kept here, the preferences only hold a weak reference to their listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener mMeteredListener =
+            (prefs, key) -> {
+                if (Constants.PREF_METERED_DOWNLOADS.equals(key)) {
+                    mUiThread.post(this::updateNetworkUsable);
+                }
+            };
 
     public interface StatusListener {
         void onUpdateStatusChanged(Update update, int state);
@@ -98,6 +118,57 @@ public class HubController {
         mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         Utils.cleanupDownloadsDir(context);
+        DownloadClient.setCacheDir(mContext.getCacheDir());
+
+        mNetworkMonitor = new NetworkMonitor(mContext,
+                (available, metered) -> mUiThread.post(() -> onNetworkChanged(available, metered)));
+        mNetworkMonitor.start();
+        mContext.getSharedPreferences(Utils.SHARED_PREFERENCES_KEY, Context.MODE_PRIVATE)
+                .registerOnSharedPreferenceChangeListener(mMeteredListener);
+    }
+
+    private void onNetworkChanged(boolean available, boolean metered) {
+        mNetworkAvailable = available;
+        mNetworkMetered = metered;
+        updateNetworkUsable();
+    }
+
+    /**
+     * Pause the downloads when the network goes away or becomes one they may not
+     * use, and resume them once it's back. Runs again when the user allows or
+     * forbids downloads on metered networks.
+     */
+    private void updateNetworkUsable() {
+        if (mNetworkAvailable == null) {
+            return;
+        }
+        SharedPreferences prefs = mContext.getSharedPreferences(Utils.SHARED_PREFERENCES_KEY,
+                Context.MODE_PRIVATE);
+        boolean allowMetered = prefs.getBoolean(Constants.PREF_METERED_DOWNLOADS,
+                mContext.getResources().getBoolean(R.bool.config_meteredDownloadsDefault));
+        boolean usable = mNetworkAvailable && (allowMetered || !mNetworkMetered);
+        boolean wasUsable = mNetworkUsable == null || mNetworkUsable;
+        mNetworkUsable = usable;
+        if (wasUsable && !usable) {
+            for (String downloadId : new ArrayList<>(mDownloads.keySet())) {
+                if (isDownloading(downloadId)) {
+                    Log.d(TAG, "Pausing " + downloadId + " until the network allows it");
+                    pauseDownload(downloadId);
+                    mNetworkPausedDownloads.add(downloadId);
+                }
+            }
+        } else if (usable) {
+            for (String downloadId : mNetworkPausedDownloads) {
+                Update update = mDownloads.containsKey(downloadId)
+                        ? Objects.requireNonNull(mDownloads.get(downloadId)).mUpdate : null;
+                // Unless the user did something with it in the meantime
+                if (update != null && update.getStatus() == UpdateStatus.PAUSED) {
+                    Log.d(TAG, "Network is back, resuming " + downloadId);
+                    resumeDownload(downloadId);
+                }
+            }
+            mNetworkPausedDownloads.clear();
+        }
     }
 
     private static class DownloadEntry {
@@ -177,6 +248,27 @@ public class HubController {
                 }
                 tryReleaseWakelock();
             }
+
+            @Override
+            public void onError(int error) {
+                Update update = Objects.requireNonNull(mDownloads.get(downloadId)).mUpdate;
+                if (error == ERROR_INSUFFICIENT_STORAGE) {
+                    Log.e(TAG, "Not enough space for the download");
+                    update.setStatus(UpdateStatus.INSUFFICIENT_STORAGE, mContext);
+                } else if (error == ERROR_DIGEST_MISMATCH) {
+                    Log.e(TAG, "The download doesn't match its digest");
+                    removeDownloadClient(Objects.requireNonNull(mDownloads.get(downloadId)));
+                    repairDigestAsync(update, downloadId);
+                    tryReleaseWakelock();
+                    return;
+                } else {
+                    onFailure(false);
+                    return;
+                }
+                removeDownloadClient(Objects.requireNonNull(mDownloads.get(downloadId)));
+                notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
+                tryReleaseWakelock();
+            }
         };
     }
 
@@ -219,8 +311,24 @@ public class HubController {
         mVerifyingUpdates.add(downloadId);
         new Thread(() -> {
             File file = update.getFile();
-            if (file.exists() && verifyPackage(file)) {
+            boolean verified = file.exists() && verifyPackage(file);
+            if (!verified && !isLocalUpdate && file.exists()) {
+                verified = repairPackage(update) && verifyPackage(file);
+            }
+            if (!verified && file.exists()) {
+                // The state of the download mustn't be resumed from either
+                DownloadClient.delete(file);
+            }
+            if (verified && !isLocalUpdate) {
+                mPrefs.edit().putString(Constants.PREF_VERIFIED_DOWNLOAD_ID, downloadId).apply();
+            } else {
+                forgetVerified(downloadId);
+            }
+            if (verified) {
                 file.setReadable(true, false);
+                if (isPeerCacheEnabled()) {
+                    PeerCache.getInstance(mContext).share(file);
+                }
                 update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
                 update.setStatus(isLocalUpdate ? UpdateStatus.LOCAL_UPDATE : UpdateStatus.VERIFIED, mContext);
             } else {
@@ -233,6 +341,37 @@ public class HubController {
         }).start();
     }
 
+    /**
+     * Fix a download that doesn't match its digest by downloading again the chunks
+     * that don't match the manifest, then check the digest again. The file is
+     * dropped if that fails: a valid signature doesn't make up for a bad digest.
+     */
+    private void repairDigestAsync(Update update, final String downloadId) {
+        update.setStatus(UpdateStatus.VERIFYING, mContext);
+        notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
+        mVerifyingUpdates.add(downloadId);
+        new Thread(() -> {
+            File file = update.getFile();
+            boolean repaired = file.exists() && repairPackage(update)
+                    && DownloadClient.checkDigests(file, update.getDownloadId(),
+                            update.getSha256());
+            mUiThread.post(() -> {
+                mVerifyingUpdates.remove(downloadId);
+                if (repaired) {
+                    // The signature still has to be checked
+                    verifyUpdateAsync(update, downloadId, false);
+                    return;
+                }
+                Log.e(TAG, "Could not repair " + downloadId + ", dropping it");
+                DownloadClient.delete(file);
+                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                update.setProgress(0);
+                update.setStatus(UpdateStatus.VERIFICATION_FAILED, mContext);
+                notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
+            });
+        }).start();
+    }
+
     private boolean verifyPackage(File file) {
         try {
             android.os.RecoverySystem.verifyPackage(file, null, null);
@@ -240,9 +379,7 @@ public class HubController {
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
-            if (file.exists()) {
-                file.delete();
-            } else {
+            if (!file.exists()) {
                 // The download was probably stopped. Exit silently
                 Log.e(TAG, "Error while verifying the file", e);
             }
@@ -260,7 +397,8 @@ public class HubController {
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED, mContext);
                     int progress = Math.round(
-                            update.getFile().length() * 100 / update.getFileSize());
+                            DownloadClient.getDownloadedBytes(update.getFile()) * 100
+                                    / update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -327,9 +465,26 @@ public class HubController {
                     Log.d(TAG, "Setting update status for local update");
                     update.setStatus(UpdateStatus.LOCAL_UPDATE, mContext);
                 }
+            } else if (status == UpdateStatus.VERIFIED && isPrefetched(update)) {
+                Log.d(TAG, "Update " + info.getDownloadId() + " was prefetched");
+                update.setFile(new File(mDownloadRoot, update.getName()));
+                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                update.setStatus(UpdateStatus.VERIFIED, mContext);
+                if (isPeerCacheEnabled()) {
+                    // Shared packages are forgotten when the hub stops
+                    PeerCache.getInstance(mContext).share(update.getFile());
+                }
             } else {
                 Log.d(TAG, "Setting update status for update");
                 update.setStatus(UpdateStatus.AVAILABLE, mContext);
+                if (isPeerCacheEnabled()) {
+                    // Peers take a while to show up, look for them before they're needed
+                    PeerCache.getInstance(mContext).discover();
+                }
+                if (mContext.getResources().getBoolean(R.bool.config_prewarmDownload)
+                        && !Boolean.FALSE.equals(mNetworkUsable)) {
+                    DownloadClient.prewarm(update.getDownloadUrl());
+                }
             }
             update.setAvailableOnline(true);
             notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
@@ -357,13 +512,80 @@ public class HubController {
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
         }
+        mPrefetchDownloads.remove(downloadId);
+        Update update = Objects.requireNonNull(mDownloads.get(downloadId)).mUpdate;
+        downloadUpdate(update, downloadId);
+    }
+
+    /**
+     * @return true if the update would be installed straight from the server
+     * rather than downloaded first
+     */
+    public boolean canInstallStreaming(String downloadId) {
+        if (!Utils.isABDevice() || !mDownloads.containsKey(downloadId)
+                || !mContext.getResources().getBoolean(R.bool.config_abStreamingInstall)) {
+            return false;
+        }
         Update update = Objects.requireNonNull(mDownloads.get(downloadId)).mUpdate;
+        return !isDownloading(downloadId)
+                && (update.getFile() == null || !update.getFile().exists());
+    }
+
+    /**
+     * Install an A/B update straight from the server, or download it first if it
+     * can't be streamed. Only meant to be called once the install went through
+     * the same checks and confirmation as any other.
+     */
+    public void installStreaming(String downloadId) {
+        synchronized (this) {
+            // Claimed before the package is read, so that it's only installed once
+            if (mStreamingInstall || isInstalling(mContext, true)) {
+                Log.e(TAG, "Already installing an update, not streaming " + downloadId);
+                return;
+            }
+            mStreamingInstall = true;
+        }
+        Log.d(TAG, "Streaming " + downloadId);
+        Update update = Objects.requireNonNull(mDownloads.get(downloadId)).mUpdate;
+        final int status = update.getStatus();
+        update.setStatus(UpdateStatus.STARTING, mContext);
+        notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
+        new Thread(() -> {
+            ABUpdateController controller = ABUpdateController.getInstance(mContext, this);
+            final int result = controller.installStreaming(downloadId);
+            mUiThread.post(() -> {
+                synchronized (this) {
+                    mStreamingInstall = false;
+                }
+                if (result == ABUpdateController.STREAMING_STARTED) {
+                    // Unless update_engine already reported on it
+                    if (update.getStatus() == UpdateStatus.STARTING) {
+                        update.setStatus(UpdateStatus.INSTALLING, mContext);
+                        notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
+                    }
+                } else if (result == ABUpdateController.STREAMING_UNSUPPORTED) {
+                    Log.d(TAG, "Downloading " + downloadId + " before installing it");
+                    downloadUpdate(update, downloadId);
+                } else if (result == ABUpdateController.STREAMING_BUSY) {
+                    update.setStatus(status, mContext);
+                    notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
+                } else {
+                    update.setStatus(UpdateStatus.INSTALLATION_FAILED, mContext);
+                    notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
+                }
+            });
+        }).start();
+    }
+
+    private void downloadUpdate(Update update, String downloadId) {
         File destination = new File(mDownloadRoot, update.getName());
         /*if (destination.exists()) {
             destination = Utils.appendSequentialNumber(destination);
             Log.d(TAG, "Changing name with " + destination.getName());
         }*/
         update.setFile(destination);
+        // The destination is allocated in full, its length doesn't tell it's done
+        forgetVerified(downloadId);
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
@@ -372,6 +594,20 @@ public class HubController {
                     .setDownloadCallback(getDownloadCallback(downloadId))
                     .setProgressListener(getProgressListener(downloadId))
                     .setUseDuplicateLinks(true)
+                    .setSegments(mContext.getResources().getInteger(
+                            R.integer.config_downloadSegments))
+                    .setRaceDuplicateLinks(mContext.getResources().getInteger(
+                            R.integer.config_downloadRaceMirrors))
+                    .setStripeDuplicateLinks(mContext.getResources().getBoolean(
+                            R.bool.config_downloadStripeMirrors))
+                    .setMd5(update.getDownloadId())
+                    .setSha256(update.getSha256())
+                    .setChunkManifestUrl(getChunkManifestUrl(update))
+                    .setPeerUrls(getPeerUrls(update))
+                    .setPriority(getDownloadPriority(downloadId))
+                    .setCheckpointInterval(getCheckpointInterval())
+                    .setDeltaSeed(Utils.getDeltaSeed(mContext))
+                    .setBlockMapUrl(update.getDownloadUrl() + Constants.BLOCK_MAP_EXT)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -399,7 +635,7 @@ public class HubController {
             notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
             return;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize() && Version.isBuild(TYPE_RELEASE)) {
+        if (file.exists() && update.getFileSize() > 0 && DownloadClient.getDownloadedBytes(file) >= update.getFileSize() && Version.isBuild(TYPE_RELEASE)) {
             Log.d(TAG, "File already downloaded, starting verification");
             if (Version.isBuild(TYPE_RELEASE)) verifyUpdateAsync(update, downloadId, false);
             notifyUpdateStatusChanged(update, STATE_STATUS_CHANGED);
@@ -412,6 +648,18 @@ public class HubController {
                         .setDownloadCallback(getDownloadCallback(downloadId))
                         .setProgressListener(getProgressListener(downloadId))
                         .setUseDuplicateLinks(true)
+                        .setSegments(mContext.getResources().getInteger(
+                                R.integer.config_downloadSegments))
+                        .setRaceDuplicateLinks(mContext.getResources().getInteger(
+                                R.integer.config_downloadRaceMirrors))
+                        .setStripeDuplicateLinks(mContext.getResources().getBoolean(
+                                R.bool.config_downloadStripeMirrors))
+                        .setMd5(update.getDownloadId())
+                        .setSha256(update.getSha256())
+                        .setChunkManifestUrl(getChunkManifestUrl(update))
+                        .setPeerUrls(getPeerUrls(update))
+                        .setPriority(getDownloadPriority(downloadId))
+                        .setCheckpointInterval(getCheckpointInterval())
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
@@ -427,6 +675,70 @@ public class HubController {
         }
     }
 
+    /**
+     * Download and verify an update in the background while nobody is waiting for
+     * it, resuming what an earlier prefetch left. The download runs at background
+     * priority: a download of the same host the user asks for can pause it to get
+     * a connection, but it isn't limited in bandwidth otherwise.
+     */
+    public void prefetchDownload(String downloadId) {
+        Log.d(TAG, "Prefetching " + downloadId);
+        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+            return;
+        }
+        mPrefetchDownloads.add(downloadId);
+        Update update = Objects.requireNonNull(mDownloads.get(downloadId)).mUpdate;
+        if (update.getFile() == null) {
+            update.setFile(new File(mDownloadRoot, update.getName()));
+        }
+        if (DownloadClient.getDownloadedBytes(update.getFile()) > 0) {
+            resumeDownload(downloadId);
+        } else {
+            downloadUpdate(update, downloadId);
+        }
+    }
+
+    private int getDownloadPriority(String downloadId) {
+        return mPrefetchDownloads.contains(downloadId)
+                ? DownloadClient.PRIORITY_BACKGROUND : DownloadClient.PRIORITY_USER;
+    }
+
+    /**
+     * @return true if the package of the update was downloaded in full and passed
+     * verification while the hub wasn't running
+     */
+    private boolean isPrefetched(Update update) {
+        if (!update.getDownloadId().equals(
+                mPrefs.getString(Constants.PREF_VERIFIED_DOWNLOAD_ID, null))) {
+            return false;
+        }
+        File file = new File(mDownloadRoot, update.getName());
+        return file.exists() && update.getFileSize() > 0
+                && file.length() == update.getFileSize();
+    }
+
+    /**
+     * Stop trusting the package of the given download to be verified, it changed
+     * or is gone.
+     */
+    private void forgetVerified(String downloadId) {
+        if (downloadId.equals(mPrefs.getString(Constants.PREF_VERIFIED_DOWNLOAD_ID, null))) {
+            mPrefs.edit().remove(Constants.PREF_VERIFIED_DOWNLOAD_ID).apply();
+        }
+    }
+
+    /**
+     * Apply the bandwidth limit for downloads running while the user is in the
+     * hub, or while they are busy with something else.
+     */
+    public void setForeground(boolean foreground) {
+        int limit = mContext.getResources().getInteger(foreground
+                ? R.integer.config_downloadRateLimitForeground
+                : R.integer.config_downloadRateLimitBackground);
+        Log.d(TAG, "Limiting downloads to " + limit + " KiB/s, foreground=" + foreground);
+        DownloadClient.setRateLimit(limit * 1024L);
+    }
+
     public void pauseDownload(String downloadId) {
         if (!isDownloading(downloadId)) {
             Log.d(TAG, "Couldn't pausing, nothing downloading");
@@ -447,10 +759,55 @@ public class HubController {
         notifyUpdateStatusChanged(entry.mUpdate, STATE_STATUS_CHANGED);
     }
 
+    /**
+     * Fix a package that failed verification by downloading again only the chunks
+     * that don't match the manifest published by the server.
+     *
+     * @return true if chunks were repaired, so that the package is worth checking
+     * again
+     */
+    private boolean repairPackage(Update update) {
+        String manifestUrl = getChunkManifestUrl(update);
+        if (manifestUrl == null) {
+            return false;
+        }
+        Log.d(TAG, "Trying to repair " + update.getFile());
+        return DownloadClient.repair(update.getDownloadUrl(), update.getFile(), manifestUrl);
+    }
+
+    private String getChunkManifestUrl(Update update) {
+        if (!mContext.getResources().getBoolean(R.bool.config_downloadRemoteChunkManifest)) {
+            return null;
+        }
+        return update.getDownloadUrl() + Constants.CHUNK_MANIFEST_EXT;
+    }
+
+    private long getCheckpointInterval() {
+        return mContext.getResources().getInteger(R.integer.config_downloadCheckpointInterval)
+                * 1024L * 1024L;
+    }
+
+    private boolean isPeerCacheEnabled() {
+        return mContext.getResources().getBoolean(R.bool.config_peerCache);
+    }
+
+    private List<String> getPeerUrls(Update update) {
+        if (!isPeerCacheEnabled()) {
+            return Collections.emptyList();
+        }
+        PeerCache peerCache = PeerCache.getInstance(mContext);
+        peerCache.discover();
+        return peerCache.getPeerUrls(update.getName());
+    }
+
     private void deleteUpdateAsync(final Update update) {
+        forgetVerified(update.getDownloadId());
         new Thread(() -> {
             File file = update.getFile();
-            if (file.exists() && !file.delete()) {
+            if (isPeerCacheEnabled()) {
+                PeerCache.getInstance(mContext).unshare(file);
+            }
+            if (file.exists() && !DownloadClient.delete(file)) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
         }).start();
@@ -37,6 +37,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.PreferenceHighlighter;
 import co.aospa.hub.misc.Utils;
+import co.aospa.hub.service.PrefetchJobService;
 
 public class HubPreferencesActivity extends Activity implements
         OnPreferenceStartFragmentCallback, OnPreferenceStartScreenCallback,
@@ -51,6 +52,8 @@ public class HubPreferencesActivity extends Activity implements
     public static final String PREF_ALLOW_DOWNGRADING = Constants.PREF_ALLOW_DOWNGRADING;
     public static final String PREF_ALLOW_LOCAL_UPDATES = Constants.PREF_ALLOW_LOCAL_UPDATES;
     public static final String PREF_ALLOW_BETA_UPDATES = Constants.PREF_ALLOW_BETA_UPDATES;
+    public static final String PREF_METERED_DOWNLOADS = Constants.PREF_METERED_DOWNLOADS;
+    public static final String PREF_PREFETCH_UPDATES = Constants.PREF_PREFETCH_UPDATES;
 
     private SharedPreferences mPrefs;
 
@@ -136,6 +139,12 @@ public class HubPreferencesActivity extends Activity implements
             if (enabled) {
                 checkStoragePermissions();
             }
+        } else if (PREF_PREFETCH_UPDATES.equals(key)) {
+            if (PrefetchJobService.isEnabled(this)) {
+                PrefetchJobService.schedule(this);
+            } else {
+                PrefetchJobService.cancel(this);
+            }
         }
     }
 
@@ -212,6 +221,10 @@ public class HubPreferencesActivity extends Activity implements
                     return true;
                 case PREF_ALLOW_BETA_UPDATES:
                     return true;
+                case PREF_METERED_DOWNLOADS:
+                    return true;
+                case PREF_PREFETCH_UPDATES:
+                    return true;
             }
             return true;
         }
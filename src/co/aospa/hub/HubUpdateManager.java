@@ -135,6 +135,10 @@ public class HubUpdateManager implements ClientConnector.ConnectorListener {
         mThread.postDelayed(this::syncLocalUpdate, 5000);
     }
 
+    /**
+     * @param newJson the update list that was just downloaded, or oldJson itself
+     * if the cached list is still up to date
+     */
     private void requestUpdate(File oldJson, File newJson) {
         if (mEnabled) {
             if (mConfig != null && mConfig.isOtaEnabledFromServer()) {
@@ -146,7 +150,9 @@ public class HubUpdateManager implements ClientConnector.ConnectorListener {
                     }
                     // In case we set a one-shot check because of a previous failure
                     UpdateCheckReceiver.cancelUpdatesCheck(mContext);
-                    newJson.renameTo(oldJson);
+                    if (!newJson.equals(oldJson)) {
+                        newJson.renameTo(oldJson);
+                    }
                 } catch (IOException | JSONException e) {
                     e.printStackTrace();
                 }
@@ -281,4 +287,30 @@ public class HubUpdateManager implements ClientConnector.ConnectorListener {
             });
         }
     }
+
+    @Override
+    public void onClientStatusNotModified(File cachedJson) {
+        if (mIsConfigMatchMaking) {
+            if (mConfig == null) {
+                try {
+                    mConfig = UpdatePresenter.readConfiguration(cachedJson);
+                } catch (IOException | JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+            mIsConfigMatchMaking = false;
+            Log.d(TAG, "Ota configuration didn't change");
+            fetchCachedOrNewUpdates();
+        } else {
+            Log.d(TAG, "Update list didn't change");
+            // Still report what the cached list has, or that there's nothing new
+            requestUpdate(cachedJson, cachedJson);
+        }
+        if (mHub != null) {
+            mMainThread.post(() -> {
+                mHub.getProgressBar().setVisibility(View.GONE);
+                mHub.getProgressBar().setIndeterminate(false);
+            });
+        }
+    }
 }
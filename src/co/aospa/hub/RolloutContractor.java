@@ -162,6 +162,11 @@ public class RolloutContractor implements ClientConnector.ConnectorListener {
 
     public void matchMakeWhitelist(File oldWhitelist, File newWhitelist)
             throws IOException, JSONException {
+        readWhitelist(newWhitelist);
+        newWhitelist.renameTo(oldWhitelist);
+    }
+
+    private void readWhitelist(File newWhitelist) throws IOException, JSONException {
         StringBuilder json = new StringBuilder();
         try (BufferedReader br = new BufferedReader(new FileReader(newWhitelist))) {
             for (String line; (line = br.readLine()) != null;) {
@@ -178,7 +183,6 @@ public class RolloutContractor implements ClientConnector.ConnectorListener {
         }
         mWhitelist = list.toArray(new String[0]);
         Log.d(TAG, "Whitelisted devices: " + Arrays.toString(mWhitelist));
-        newWhitelist.renameTo(oldWhitelist);
     }
 
     private boolean isDevice(String[] imeiPrefix) {
@@ -257,4 +261,16 @@ public class RolloutContractor implements ClientConnector.ConnectorListener {
             Log.d(TAG, "Could not match make device whitelist");
         }
     }
+
+    @Override
+    public void onClientStatusNotModified(File cachedWhitelist) {
+        if (mWhitelist != null) {
+            return;
+        }
+        try {
+            readWhitelist(cachedWhitelist);
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Could not read cached device whitelist");
+        }
+    }
 }
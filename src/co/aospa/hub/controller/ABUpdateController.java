@@ -25,6 +25,7 @@ import androidx.preference.PreferenceManager;
 
 import co.aospa.hub.HubController;
 import co.aospa.hub.R;
+import co.aospa.hub.download.RemoteZipFile;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.Utils;
 import co.aospa.hub.model.Update;
@@ -35,6 +36,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -44,6 +46,12 @@ public class ABUpdateController extends UpdateEngineCallback {
 
     private static final String TAG = "ABUpdateController";
 
+    // Results of installStreaming()
+    public static final int STREAMING_STARTED = 0;
+    public static final int STREAMING_UNSUPPORTED = 1;
+    public static final int STREAMING_BUSY = 2;
+    public static final int STREAMING_FAILED = 3;
+
     private static ABUpdateController sInstance = null;
 
     private final HubController mController;
@@ -112,14 +120,85 @@ public class ABUpdateController extends UpdateEngineCallback {
             return;
         }
 
+        String zipFileUri = "file://" + file.getAbsolutePath();
+        if (!applyPayload(zipFileUri, offset, 0, headerKeyValuePairs)) {
+            mController.getActualUpdate(mDownloadId)
+                    .setStatus(UpdateStatus.INSTALLATION_FAILED, mContext);
+            mController.notifyUpdateStatusChanged(mController.getActualUpdate(mDownloadId), HubController.STATE_STATUS_CHANGED);
+            return;
+        }
+        mController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING, mContext);
+        mController.notifyUpdateStatusChanged(mController.getActualUpdate(mDownloadId), HubController.STATE_STATUS_CHANGED);
+    }
+
+    /**
+     * Install the update straight from the server, update_engine downloads the
+     * payload itself. Only the central directory of the package and the payload
+     * properties are fetched here. Must not be called from the main thread. The
+     * status of the update is left to the caller.
+     *
+     * @return STREAMING_STARTED, STREAMING_UNSUPPORTED if the package can't be
+     * streamed and has to be downloaded, STREAMING_BUSY if an update is already
+     * being installed, or STREAMING_FAILED if update_engine couldn't be reached
+     */
+    public int installStreaming(String downloadId) {
+        if (isInstalling(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return STREAMING_BUSY;
+        }
+
+        String url = mController.getActualUpdate(downloadId).getDownloadUrl();
+        long offset;
+        long size;
+        String[] headerKeyValuePairs;
+        try {
+            RemoteZipFile zipFile = RemoteZipFile.open(downloadId, url);
+            if (!Utils.isABUpdate(zipFile)) {
+                Log.e(TAG, url + " is not an A/B update");
+                return STREAMING_UNSUPPORTED;
+            }
+            RemoteZipFile.Entry payload = zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+            RemoteZipFile.Entry payloadProp = zipFile.getEntry(
+                    Constants.AB_PAYLOAD_PROPERTIES_PATH);
+            if (payload.getMethod() != RemoteZipFile.Entry.STORED) {
+                Log.e(TAG, "The payload of " + url + " is compressed, can't stream it");
+                return STREAMING_UNSUPPORTED;
+            }
+            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
+            size = payload.getCompressedSize();
+            String properties = new String(zipFile.getBytes(payloadProp),
+                    StandardCharsets.UTF_8);
+            List<String> lines = new ArrayList<>();
+            for (String line : properties.split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line.trim());
+                }
+            }
+            headerKeyValuePairs = lines.toArray(new String[0]);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not prepare streaming " + url, e);
+            return STREAMING_UNSUPPORTED;
+        }
+
+        // The payload is checked against the hashes of its properties, there's
+        // no package to verify beforehand. update_engine is given the download
+        // url rather than where it redirects, which may be signed and expire
+        // before the payload is done or resumed after a reboot.
+        Log.d(TAG, "Streaming " + size + " bytes at " + offset + " of " + url);
+        mDownloadId = downloadId;
+        return applyPayload(url, offset, size, headerKeyValuePairs)
+                ? STREAMING_STARTED : STREAMING_FAILED;
+    }
+
+    /**
+     * @return false if update_engine couldn't be bound
+     */
+    private boolean applyPayload(String uri, long offset, long size, String[] headerKeyValuePairs) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(this);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED, mContext);
-                mController.notifyUpdateStatusChanged(mController.getActualUpdate(mDownloadId), HubController.STATE_STATUS_CHANGED);
-                return;
+                return false;
             }
         }
 
@@ -128,15 +207,11 @@ public class ABUpdateController extends UpdateEngineCallback {
         boolean enableABPerfMode = prefs.getBoolean(Constants.PREF_AB_PERF_MODE, enableABPerfModeDefault);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
-
-        mController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING, mContext);
-        mController.notifyUpdateStatusChanged(mController.getActualUpdate(mDownloadId), HubController.STATE_STATUS_CHANGED);
+        mUpdateEngine.applyPayload(uri, offset, size, headerKeyValuePairs);
 
         setDownloadId(mDownloadId, false);
         setInstalling(true);
-
+        return true;
     }
 
     public void suspend() {
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checksums of the fixed size blocks a file is made of, published by the server
+ * next to the file so that the blocks it shares with a file we already have can
+ * be found wherever they moved, like zsync does.
+ *
+ * Each block has a weak checksum that can be rolled over the other file one byte
+ * at a time, and a strong hash confirming the blocks the weak one matched:
+ * { "algorithm": "MD5", "block_size": 65536, "length": 123456789,
+ *   "checksums": [ 123456, ... ], "hashes": [ "<hex>", ... ] }
+ *
+ * The weak checksum is the one of rsync: with a the sum of the bytes of the block
+ * and b the sum of each byte times its distance to the end of the block, both
+ * modulo 2^16, it is a + (b << 16). The last block is only listed if it's full.
+ */
+final class BlockMap {
+
+    private static final String TAG = "BlockMap";
+
+    private static final int MAX_BLOCK_MAP_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int TIMEOUT_MS = 5000;
+    // Bits of the filter rejecting most of the checksums without a lookup
+    private static final int FILTER_BITS = 20;
+
+    private static final String KEY_ALGORITHM = "algorithm";
+    private static final String KEY_BLOCK_SIZE = "block_size";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_CHECKSUMS = "checksums";
+    private static final String KEY_HASHES = "hashes";
+
+    private final String mAlgorithm;
+    private final int mBlockSize;
+    private final long mLength;
+    private final byte[][] mHashes;
+    // Blocks by weak checksum, several blocks can have the same content
+    private final Map<Integer, int[]> mBlocks = new HashMap<>();
+    private final BitSet mFilter = new BitSet(1 << FILTER_BITS);
+
+    private BlockMap(String algorithm, int blockSize, long length, int blocks) {
+        mAlgorithm = algorithm;
+        mBlockSize = blockSize;
+        mLength = length;
+        mHashes = new byte[blocks][];
+    }
+
+    /**
+     * @return the block map published at the given url, or null if there's none
+     */
+    static BlockMap fetch(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = ConnectionManager.getInstance().open(url);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, "No block map at " + url + " (" + responseCode + ")");
+                ConnectionManager.getInstance().discard(connection);
+                return null;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (InputStream inputStream = connection.getInputStream()) {
+                byte[] b = new byte[8192];
+                int count;
+                while ((count = inputStream.read(b)) > 0) {
+                    output.write(b, 0, count);
+                    if (output.size() > MAX_BLOCK_MAP_SIZE) {
+                        throw new IOException("Block map too large");
+                    }
+                }
+            }
+            return parse(new JSONObject(new String(output.toByteArray(), StandardCharsets.UTF_8)));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not fetch the block map at " + url, e);
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static BlockMap parse(JSONObject object) throws JSONException {
+        final String algorithm = object.getString(KEY_ALGORITHM);
+        final long blockSize = object.getLong(KEY_BLOCK_SIZE);
+        final long length = object.getLong(KEY_LENGTH);
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new JSONException("Invalid block size " + blockSize);
+        }
+        JSONArray checksums = object.getJSONArray(KEY_CHECKSUMS);
+        JSONArray hashes = object.getJSONArray(KEY_HASHES);
+        if (length < 0 || checksums.length() != length / blockSize
+                || hashes.length() != checksums.length()) {
+            throw new JSONException("The block map doesn't describe " + length + " bytes");
+        }
+        BlockMap map = new BlockMap(algorithm, (int) blockSize, length, checksums.length());
+        final int hashLength;
+        try {
+            hashLength = map.newDigest().getDigestLength();
+        } catch (NoSuchAlgorithmException e) {
+            throw new JSONException("Unsupported algorithm " + algorithm);
+        }
+        for (int i = 0; i < checksums.length(); i++) {
+            final int checksum = (int) checksums.getLong(i);
+            final int[] blocks = map.mBlocks.get(checksum);
+            if (blocks == null) {
+                map.mBlocks.put(checksum, new int[] { i });
+            } else {
+                int[] more = Arrays.copyOf(blocks, blocks.length + 1);
+                more[blocks.length] = i;
+                map.mBlocks.put(checksum, more);
+            }
+            map.mFilter.set(filterIndex(checksum));
+            map.mHashes[i] = parseHash(hashes.getString(i), hashLength);
+        }
+        return map;
+    }
+
+    private static byte[] parseHash(String hex, int length) throws JSONException {
+        if (hex.length() != length * 2) {
+            throw new JSONException("Invalid hash " + hex);
+        }
+        byte[] hash = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new JSONException("Invalid hash " + hex);
+            }
+            hash[i] = (byte) ((high << 4) | low);
+        }
+        return hash;
+    }
+
+    private static int filterIndex(int checksum) {
+        return (checksum * 0x9e3779b1) >>> (Integer.SIZE - FILTER_BITS);
+    }
+
+    int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return the length of the file the map describes
+     */
+    long getLength() {
+        return mLength;
+    }
+
+    MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(mAlgorithm);
+    }
+
+    /**
+     * @return false if no block has the given weak checksum, true if one might
+     */
+    boolean mightContain(int checksum) {
+        return mFilter.get(filterIndex(checksum));
+    }
+
+    /**
+     * Find the blocks with the content of the given bytes.
+     *
+     * @param checksum the weak checksum of the bytes
+     * @param b a buffer holding a whole block at the given offset
+     * @return the blocks matching, or null if none does
+     */
+    int[] findBlocks(int checksum, byte[] b, int offset, MessageDigest digest) {
+        final int[] blocks = mBlocks.get(checksum);
+        if (blocks == null) {
+            return null;
+        }
+        digest.reset();
+        digest.update(b, offset, mBlockSize);
+        final byte[] hash = digest.digest();
+        int[] matching = null;
+        int count = 0;
+        for (int block : blocks) {
+            if (Arrays.equals(hash, mHashes[block])) {
+                if (matching == null) {
+                    matching = new int[blocks.length];
+                }
+                matching[count++] = block;
+            }
+        }
+        return matching == null ? null : Arrays.copyOf(matching, count);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Process wide pool of direct buffers used to move downloaded bytes to disk.
+ * Buffers are sized in powers of two between MIN_SIZE and MAX_SIZE, so that
+ * a download can switch to a bigger or smaller buffer as its speed changes
+ * without allocating each time.
+ */
+final class BufferPool {
+
+    static final int MIN_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 1024 * 1024;
+
+    // Aim at roughly this much time worth of data per write
+    private static final long TARGET_FILL_MS = 250;
+    private static final long MAX_POOLED_BYTES = 4 * MAX_SIZE;
+
+    private static BufferPool sInstance;
+
+    // One queue per power of two, from MIN_SIZE to MAX_SIZE
+    private final ArrayDeque<ByteBuffer>[] mBuffers;
+    private long mPooledBytes;
+
+    @SuppressWarnings("unchecked")
+    private BufferPool() {
+        int sizes = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+        mBuffers = new ArrayDeque[sizes];
+        for (int i = 0; i < sizes; i++) {
+            mBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    static synchronized BufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BufferPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param bytesPerSecond the current speed, or a negative value if unknown
+     * @return the buffer size to use for the given speed
+     */
+    static int sizeFor(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return MIN_SIZE;
+        }
+        long target = bytesPerSecond * TARGET_FILL_MS / 1000;
+        int size = MIN_SIZE;
+        while (size < MAX_SIZE && size < target) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Read from the source until the buffer is full or the stream ends, so that
+     * the disk sees a single write for many network reads.
+     *
+     * @return the number of bytes read, or -1 if the stream ended before any
+     */
+    static int fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer);
+            if (read < 0) {
+                return total > 0 ? total : -1;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size / MIN_SIZE);
+    }
+
+    synchronized ByteBuffer acquire(int size) {
+        ByteBuffer buffer = mBuffers[indexOf(size)].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        mPooledBytes -= size;
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        if (mPooledBytes + buffer.capacity() > MAX_POOLED_BYTES) {
+            return;
+        }
+        mPooledBytes += buffer.capacity();
+        mBuffers[indexOf(buffer.capacity())].push(buffer);
+    }
+
+    /**
+     * @return a cleared buffer of the given size, which is the same buffer if
+     * its size already matches
+     */
+    ByteBuffer resize(ByteBuffer buffer, int size) {
+        if (buffer.capacity() == size) {
+            buffer.clear();
+            return buffer;
+        }
+        release(buffer);
+        return acquire(size);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes of the fixed size chunks a file is made of, used to tell which of the
+ * bytes already downloaded can be trusted when resuming. The manifest is either
+ * published by the server next to the file, or built locally as chunks are
+ * written, in which case it catches what the storage lost rather than what the
+ * network corrupted.
+ *
+ * A published manifest is a JSON object like:
+ * { "algorithm": "SHA-256", "chunk_size": 4194304, "chunks": [ "<hex>", ... ] }
+ */
+final class ChunkManifest {
+
+    private static final String TAG = "ChunkManifest";
+
+    private static final String CRC_32 = "CRC32";
+    private static final long LOCAL_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+    private static final int TIMEOUT_MS = 5000;
+
+    private static final String KEY_ALGORITHM = "algorithm";
+    private static final String KEY_CHUNK_SIZE = "chunk_size";
+    private static final String KEY_CHUNKS = "chunks";
+    private static final String KEY_REMOTE = "remote";
+
+    private final String mAlgorithm;
+    private final long mChunkSize;
+    private final boolean mRemote;
+    private final List<String> mHashes = new ArrayList<>();
+
+    private ChunkManifest(String algorithm, long chunkSize, boolean remote) {
+        mAlgorithm = algorithm;
+        mChunkSize = chunkSize;
+        mRemote = remote;
+    }
+
+    /**
+     * @return an empty manifest to be filled as chunks are downloaded
+     */
+    static ChunkManifest createLocal() {
+        // Only meant to catch storage errors, a CRC is enough and much cheaper
+        return new ChunkManifest(CRC_32, LOCAL_CHUNK_SIZE, false);
+    }
+
+    /**
+     * @return the manifest published at the given url, or null if there's none
+     */
+    static ChunkManifest fetch(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = ConnectionManager.getInstance().open(url);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, "No chunk manifest at " + url + " (" + responseCode + ")");
+                ConnectionManager.getInstance().discard(connection);
+                return null;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (InputStream inputStream = connection.getInputStream()) {
+                byte[] b = new byte[8192];
+                int count;
+                while ((count = inputStream.read(b)) > 0) {
+                    output.write(b, 0, count);
+                    if (output.size() > MAX_MANIFEST_SIZE) {
+                        throw new IOException("Chunk manifest too large");
+                    }
+                }
+            }
+            JSONObject object = new JSONObject(
+                    new String(output.toByteArray(), StandardCharsets.UTF_8));
+            object.put(KEY_REMOTE, true);
+            return restore(object);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not fetch the chunk manifest at " + url, e);
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    static ChunkManifest restore(JSONObject object) throws JSONException {
+        ChunkManifest manifest = new ChunkManifest(object.getString(KEY_ALGORITHM),
+                object.getLong(KEY_CHUNK_SIZE), object.optBoolean(KEY_REMOTE, false));
+        if (manifest.mChunkSize <= 0 || manifest.mChunkSize > Integer.MAX_VALUE) {
+            throw new JSONException("Invalid chunk size " + manifest.mChunkSize);
+        }
+        try {
+            manifest.newChecksum();
+        } catch (NoSuchAlgorithmException e) {
+            throw new JSONException("Unsupported algorithm " + manifest.mAlgorithm);
+        }
+        JSONArray chunks = object.getJSONArray(KEY_CHUNKS);
+        for (int i = 0; i < chunks.length(); i++) {
+            manifest.mHashes.add(chunks.getString(i).toLowerCase(Locale.ROOT));
+        }
+        return manifest;
+    }
+
+    synchronized JSONObject save() throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put(KEY_ALGORITHM, mAlgorithm);
+        object.put(KEY_CHUNK_SIZE, mChunkSize);
+        object.put(KEY_REMOTE, mRemote);
+        JSONArray chunks = new JSONArray();
+        for (String hash : mHashes) {
+            chunks.put(hash);
+        }
+        object.put(KEY_CHUNKS, chunks);
+        return object;
+    }
+
+    long getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Hash the chunks of a local manifest that were completed since the last call.
+     *
+     * @param length how many bytes at the start of the file are downloaded
+     */
+    void update(File file, long length) throws IOException {
+        if (mRemote || (mHashes.size() + 1) * mChunkSize > length) {
+            return;
+        }
+        ByteBuffer buffer = BufferPool.getInstance().acquire(BufferPool.MAX_SIZE);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            while ((mHashes.size() + 1) * mChunkSize <= length) {
+                final String hash = hash(channel, mHashes.size(), buffer);
+                // The manifest may be saved meanwhile
+                synchronized (this) {
+                    mHashes.add(hash);
+                }
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * Check the chunks at the start of the file against their hashes.
+     *
+     * @param length how many bytes at the start of the file are believed downloaded
+     * @return the end of the last chunk that could be checked with no bad chunk
+     * before it, which is never more than length
+     */
+    long validate(File file, long length) throws IOException {
+        final int chunks = (int) Math.min(mHashes.size(), length / mChunkSize);
+        int good = 0;
+        ByteBuffer buffer = BufferPool.getInstance().acquire(BufferPool.MAX_SIZE);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            while (good < chunks && isValid(channel, good, buffer)) {
+                good++;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        if (good < chunks) {
+            Log.e(TAG, "Chunk " + good + " of " + file + " is corrupted");
+        }
+        if (!mRemote) {
+            // The chunks past that point will be downloaded and hashed again
+            mHashes.subList(good, mHashes.size()).clear();
+        }
+        return good * mChunkSize;
+    }
+
+    /**
+     * Check every chunk of a complete file against its hash.
+     *
+     * @return the chunks that don't match, or null if the manifest doesn't describe
+     * a file of this length
+     */
+    List<Integer> findCorrupted(File file) throws IOException {
+        final long length = file.length();
+        if ((length + mChunkSize - 1) / mChunkSize != mHashes.size()) {
+            Log.e(TAG, "The manifest has " + mHashes.size() + " chunks, " + file
+                    + " is " + length + " bytes long");
+            return null;
+        }
+        List<Integer> corrupted = new ArrayList<>();
+        ByteBuffer buffer = BufferPool.getInstance().acquire(BufferPool.MAX_SIZE);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            for (int i = 0; i < mHashes.size(); i++) {
+                if (!isValid(channel, i, buffer)) {
+                    corrupted.add(i);
+                }
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        return corrupted;
+    }
+
+    /**
+     * @return true if the given chunk of the file matches its hash
+     */
+    boolean isValid(FileChannel channel, int chunk, ByteBuffer buffer) throws IOException {
+        return mHashes.get(chunk).equals(hash(channel, chunk, buffer));
+    }
+
+    private String hash(FileChannel channel, int chunk, ByteBuffer buffer) throws IOException {
+        final Checksum checksum;
+        try {
+            checksum = newChecksum();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long position = chunk * mChunkSize;
+        // The last chunk of the file can be shorter
+        final long end = Math.min(position + mChunkSize, channel.size());
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ended at " + position + ", expected " + end);
+            }
+            buffer.flip();
+            checksum.update(buffer);
+            position += read;
+        }
+        return checksum.finish();
+    }
+
+    private Checksum newChecksum() throws NoSuchAlgorithmException {
+        if (CRC_32.equals(mAlgorithm)) {
+            CRC32 crc = new CRC32();
+            return new Checksum() {
+                @Override
+                public void update(ByteBuffer buffer) {
+                    crc.update(buffer);
+                }
+
+                @Override
+                public String finish() {
+                    return String.format(Locale.ROOT, "%08x", crc.getValue());
+                }
+            };
+        }
+        MessageDigest digest = MessageDigest.getInstance(mAlgorithm);
+        return new Checksum() {
+            @Override
+            public void update(ByteBuffer buffer) {
+                digest.update(buffer);
+            }
+
+            @Override
+            public String finish() {
+                StringBuilder builder = new StringBuilder();
+                for (byte b : digest.digest()) {
+                    builder.append(String.format(Locale.ROOT, "%02x", b));
+                }
+                return builder.toString();
+            }
+        };
+    }
+
+    private interface Checksum {
+        void update(ByteBuffer buffer);
+
+        String finish();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Fixes a complete file in place by downloading again only the chunks that
+ * don't match the chunk manifest published by the server.
+ */
+final class ChunkRepair {
+
+    private static final String TAG = "ChunkRepair";
+
+    private static final int TIMEOUT_MS = 15000;
+
+    private ChunkRepair() {
+    }
+
+    /**
+     * @return true if chunks of the file didn't match the manifest and were all
+     * downloaded again, false if that failed or there was nothing the manifest
+     * could fix
+     */
+    static boolean run(String url, File file, String manifestUrl) {
+        ChunkManifest manifest = ChunkManifest.fetch(manifestUrl);
+        if (manifest == null) {
+            return false;
+        }
+        try {
+            List<Integer> corrupted = manifest.findCorrupted(file);
+            if (corrupted == null) {
+                return false;
+            } else if (corrupted.isEmpty()) {
+                // The file differs from what the manifest was built from
+                Log.d(TAG, "No corrupted chunk in " + file + ", nothing to repair");
+                return false;
+            }
+            Log.d(TAG, "Repairing " + corrupted.size() + " chunks of " + file);
+
+            final BufferPool pool = BufferPool.getInstance();
+            ByteBuffer buffer = pool.acquire(BufferPool.MAX_SIZE);
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw");
+                 FileChannel channel = output.getChannel()) {
+                final long length = channel.size();
+                final long chunkSize = manifest.getChunkSize();
+                for (int i = 0; i < corrupted.size(); ) {
+                    // Fetch runs of adjacent chunks with a single request
+                    int first = corrupted.get(i);
+                    int last = first;
+                    while (++i < corrupted.size() && corrupted.get(i) == last + 1) {
+                        last++;
+                    }
+                    final long start = first * chunkSize;
+                    final long end = Math.min((last + 1) * chunkSize, length);
+                    fetch(url, channel, start, end, buffer);
+                    for (int chunk = first; chunk <= last; chunk++) {
+                        if (!manifest.isValid(channel, chunk, buffer)) {
+                            Log.e(TAG, "Chunk " + chunk + " is still corrupted");
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                pool.release(buffer);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not repair " + file, e);
+            return false;
+        }
+    }
+
+    private static void fetch(String url, FileChannel channel, long start, long end,
+            ByteBuffer buffer) throws IOException {
+        HttpURLConnection connection = ConnectionManager.getInstance().open(url);
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 206) {
+                ConnectionManager.getInstance().discard(connection);
+                throw new IOException("Server replied with " + responseCode
+                        + " for range " + start + "-" + (end - 1));
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                ReadableByteChannel source = Channels.newChannel(inputStream);
+                long position = start;
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    if (BufferPool.fill(source, buffer) <= 0) {
+                        throw new IOException("Range ended at " + position + ", expected " + end);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
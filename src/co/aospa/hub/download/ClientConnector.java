@@ -15,10 +15,17 @@
  */
 package co.aospa.hub.download;
 
+import android.util.AtomicFile;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,15 +33,25 @@ public class ClientConnector implements DownloadClient.DownloadCallback {
 
     private static final String TAG = "ClientConnector";
 
+    private static final String VALIDATORS_SUFFIX = ".validators";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_MODIFIED_MILLIS = "modified_millis";
+
     private final List<ConnectorListener> mListeners = new ArrayList<>();
 
     private DownloadClient mClient;
     private File mJson;
+    private File mNewJson;
+    private String mETag;
+    private String mLastModified;
 
     public interface ConnectorListener {
         void onClientStatusFailure(boolean cancelled);
         void onClientStatusResponse(int statusCode, String url, DownloadClient.Headers headers);
         void onClientStatusSuccess(File oldJson, File newJson);
+        void onClientStatusNotModified(File cachedJson);
     }
 
     public ClientConnector() {
@@ -43,13 +60,29 @@ public class ClientConnector implements DownloadClient.DownloadCallback {
     public void insert(File oldJson, File newJson, String url) {
         Log.d(TAG, "Old update table: " + oldJson.getName() + "New update table: " + newJson.getName());
         mJson = oldJson;
+        mNewJson = newJson;
+        mETag = null;
+        mLastModified = null;
         mClient = null;
         try {
-            mClient = new DownloadClient.Builder()
+            DownloadClient.Builder builder = new DownloadClient.Builder()
                     .setUrl(url)
                     .setDestination(newJson)
                     .setDownloadCallback(this)
-                    .build();
+                    .setCompressed(true)
+                    .setPriority(DownloadClient.PRIORITY_METADATA);
+            JSONObject validators = readValidators(oldJson);
+            if (validators != null) {
+                String eTag = validators.optString(KEY_ETAG, null);
+                String lastModified = validators.optString(KEY_LAST_MODIFIED, null);
+                if (eTag != null) {
+                    builder.setRequestProperty("If-None-Match", eTag);
+                }
+                if (lastModified != null) {
+                    builder.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+            mClient = builder.build();
         } catch (IOException exception) {
             Log.d(TAG, "Could not build download client");
         }
@@ -63,6 +96,65 @@ public class ClientConnector implements DownloadClient.DownloadCallback {
         mListeners.add(listener);
     }
 
+    /**
+     * @return the validators of the last download of the given file, or null if
+     * there are none or the file changed since
+     */
+    private static JSONObject readValidators(File json) {
+        if (!json.exists()) {
+            return null;
+        }
+        AtomicFile file = new AtomicFile(new File(json.getPath() + VALIDATORS_SUFFIX));
+        try {
+            JSONObject validators = new JSONObject(
+                    new String(file.readFully(), StandardCharsets.UTF_8));
+            // The listeners only move the new file in place once they parsed it
+            if (validators.getLong(KEY_LENGTH) != json.length()
+                    || validators.getLong(KEY_MODIFIED_MILLIS) != json.lastModified()) {
+                Log.d(TAG, json.getName() + " changed since it was downloaded");
+                return null;
+            }
+            return validators;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read the validators of " + json.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the validators of the given download for the file it will replace.
+     */
+    private static void writeValidators(File json, File download, String eTag,
+            String lastModified) {
+        AtomicFile file = new AtomicFile(new File(json.getPath() + VALIDATORS_SUFFIX));
+        if (eTag == null && lastModified == null) {
+            file.delete();
+            return;
+        }
+        FileOutputStream outputStream = null;
+        try {
+            JSONObject validators = new JSONObject();
+            validators.put(KEY_ETAG, eTag);
+            validators.put(KEY_LAST_MODIFIED, lastModified);
+            validators.put(KEY_LENGTH, download.length());
+            validators.put(KEY_MODIFIED_MILLIS, download.lastModified());
+            outputStream = file.startWrite();
+            outputStream.write(validators.toString().getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(outputStream);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not save the validators of " + json.getName(), e);
+            if (outputStream != null) {
+                file.failWrite(outputStream);
+            }
+        }
+    }
+
+    private static void logConnectionStats() {
+        Log.d(TAG, "Connections: " + ConnectionManager.getInstance().getStats());
+    }
+
     private void notifyClientStatusFailure(boolean cancelled) {
         for (ConnectorListener listener : mListeners) {
             listener.onClientStatusFailure(cancelled);
@@ -82,21 +174,42 @@ public class ClientConnector implements DownloadClient.DownloadCallback {
         }
     }
 
+    private void notifyClientStatusNotModified(File cachedJson) {
+        for (ConnectorListener listener : mListeners) {
+            listener.onClientStatusNotModified(cachedJson);
+        }
+    }
+
     @Override
     public void onFailure(final boolean cancelled) {
         Log.e(TAG, "Could not download updates");
+        DownloadClient.delete(mNewJson);
+        logConnectionStats();
         notifyClientStatusFailure(cancelled);
     }
 
     @Override
     public void onResponse(int statusCode, String url,
         DownloadClient.Headers headers) {
+        if (statusCode == 200) {
+            mETag = headers.get("ETag");
+            mLastModified = headers.get("Last-Modified");
+        }
         notifyClientStatusResponse(statusCode, url, headers);
     }
 
     @Override
     public void onSuccess(File destination) {
+        writeValidators(mJson, destination, mETag, mLastModified);
+        logConnectionStats();
         notifyClientStatusSuccess(mJson, destination);
     }
-    
+
+    @Override
+    public void onNotModified() {
+        Log.d(TAG, mJson.getName() + " didn't change, keeping the cached copy");
+        logConnectionStats();
+        notifyClientStatusNotModified(mJson);
+    }
+
 }
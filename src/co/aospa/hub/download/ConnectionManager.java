@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens every connection of the hub. The keep-alive pool of the platform is
+ * shared by them either way, the socket factory set here only counts the TLS
+ * connections and handshakes the requests needed: the requests that didn't need
+ * a connection of their own reused one from the pool.
+ *
+ * The pool only takes a connection back once its response body was read to the
+ * end, so the bodies nobody reads (redirects, errors, 304) are dropped here
+ * before disconnecting rather than closing the socket with them.
+ */
+public final class ConnectionManager {
+
+    private static final String TAG = "ConnectionManager";
+
+    // Bodies larger than this are cheaper to drop with the connection
+    private static final int MAX_DISCARD_SIZE = 64 * 1024;
+    // Only a backstop, downloads detect stalls based on their own speed
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 60 * 1000;
+
+    private static ConnectionManager sInstance;
+
+    private final CountingSocketFactory mSocketFactory =
+            new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mHandshakes = new AtomicLong();
+
+    private ConnectionManager() {
+    }
+
+    public static synchronized ConnectionManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new ConnectionManager();
+        }
+        return sInstance;
+    }
+
+    HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (connection instanceof HttpsURLConnection) {
+            // A single instance, the pool only hands a connection back to requests
+            // using the same factory
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSocketFactory);
+            // Only the connections of these are counted
+            mRequests.incrementAndGet();
+        }
+        return connection;
+    }
+
+    HttpURLConnection open(String url) throws IOException {
+        return open(new URL(url));
+    }
+
+    /**
+     * Read what's left of a small response body that won't be used, so that the
+     * connection can go back to the pool. Must only be called once the response
+     * code is known.
+     */
+    void discard(HttpURLConnection connection) {
+        try {
+            final long length = connection.getContentLengthLong();
+            if (length > MAX_DISCARD_SIZE) {
+                return;
+            }
+            InputStream inputStream = connection.getErrorStream();
+            if (inputStream == null) {
+                inputStream = connection.getInputStream();
+            }
+            try (InputStream stream = inputStream) {
+                byte[] b = new byte[8192];
+                long total = 0;
+                int count;
+                while (total <= MAX_DISCARD_SIZE && (count = stream.read(b)) > 0) {
+                    total += count;
+                }
+            }
+        } catch (IOException e) {
+            // The connection won't be reused, nothing else to do
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(mRequests.get(), mConnections.get(), mHandshakes.get());
+    }
+
+    private void onHandshakeCompleted(HandshakeCompletedEvent event) {
+        mHandshakes.incrementAndGet();
+    }
+
+    public static final class Stats {
+        private final long mRequests;
+        private final long mConnections;
+        private final long mHandshakes;
+
+        private Stats(long requests, long connections, long handshakes) {
+            mRequests = requests;
+            mConnections = connections;
+            mHandshakes = handshakes;
+        }
+
+        /**
+         * @return how many HTTPS requests were made
+         */
+        public long getRequests() {
+            return mRequests;
+        }
+
+        /**
+         * @return how many TLS connections had to be opened for them
+         */
+        public long getConnections() {
+            return mConnections;
+        }
+
+        /**
+         * @return how many TLS handshakes completed
+         */
+        public long getHandshakes() {
+            return mHandshakes;
+        }
+
+        /**
+         * @return how many requests reused a connection from the pool
+         */
+        public long getReusedConnections() {
+            return Math.max(0, mRequests - mConnections);
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + mRequests + " connections=" + mConnections
+                    + " handshakes=" + mHandshakes + " reused=" + getReusedConnections();
+        }
+    }
+
+    private final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        private CountingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket count(Socket socket) {
+            mConnections.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(
+                        ConnectionManager.this::onHandshakeCompleted);
+            }
+            Log.d(TAG, "New connection, " + getStats());
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            return count(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost,
+                int localPort) throws IOException {
+            return count(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return count(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes the content encodings a compressed download can be served with. Brotli
+ * is only offered when a decoder ships with the platform.
+ */
+final class ContentDecoder {
+
+    private static final String TAG = "ContentDecoder";
+
+    private static final String GZIP = "gzip";
+    private static final String BROTLI = "br";
+    private static final String IDENTITY = "identity";
+    private static final String BROTLI_DECODER = "org.brotli.dec.BrotliInputStream";
+
+    private static final Constructor<?> sBrotliDecoder = findBrotliDecoder();
+
+    private ContentDecoder() {
+    }
+
+    private static Constructor<?> findBrotliDecoder() {
+        try {
+            return Class.forName(BROTLI_DECODER).getConstructor(InputStream.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the value of the Accept-Encoding header, best encoding first
+     */
+    static String getAcceptedEncodings() {
+        return sBrotliDecoder != null ? BROTLI + ", " + GZIP : GZIP;
+    }
+
+    /**
+     * @return true if a reply with the given Content-Encoding must be decoded
+     */
+    static boolean isEncoded(String encoding) {
+        return encoding != null && !encoding.isEmpty() && !IDENTITY.equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * @return a stream decoding the given one, which is returned as is if it isn't
+     * encoded
+     */
+    static InputStream decode(InputStream inputStream, String encoding) throws IOException {
+        if (!isEncoded(encoding)) {
+            return inputStream;
+        } else if (GZIP.equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(inputStream, BufferPool.MIN_SIZE);
+        } else if (BROTLI.equalsIgnoreCase(encoding) && sBrotliDecoder != null) {
+            try {
+                return (InputStream) sBrotliDecoder.newInstance(inputStream);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                Log.e(TAG, "Could not create the brotli decoder", e);
+                throw new IOException(e);
+            }
+        }
+        throw new IOException("Unsupported content encoding " + encoding);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Builds a file out of the blocks it shares with a file we already have, such as
+ * the previous update package, and downloads only the rest of it with range
+ * requests.
+ *
+ * The known file is scanned with the weak checksums of the block map rolled one
+ * byte at a time, so blocks are found even if what comes before them changed
+ * size. Blocks are written to their place in the destination, which must already
+ * be allocated to its final size.
+ */
+final class DeltaDownload {
+
+    private static final String TAG = "DeltaDownload";
+
+    private static final int SCAN_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final BlockMap mMap;
+    private final File mSeed;
+    // Where the file can be downloaded from, best first
+    private final List<String> mUrls;
+    private int mUrlIndex;
+    // Blocks that are written, from the seed or downloaded
+    private final BitSet mPresent;
+    private final int mBlocks;
+
+    private volatile long mBytesDone;
+
+    /**
+     * @param urls where the file can be downloaded from, already redirected and
+     *             best first. The next one is used once one fails.
+     */
+    DeltaDownload(BlockMap map, File seed, List<String> urls) {
+        mMap = map;
+        mSeed = seed;
+        mUrls = urls;
+        // A last block shorter than the others is always downloaded
+        mBlocks = (int) ((map.getLength() + map.getBlockSize() - 1) / map.getBlockSize());
+        mPresent = new BitSet(mBlocks);
+    }
+
+    /**
+     * @return how many bytes of the destination are written
+     */
+    long getBytesDone() {
+        return mBytesDone;
+    }
+
+    /**
+     * @return how many bytes at the start of the destination are written
+     */
+    synchronized long getContiguousEnd() {
+        return Math.min((long) mPresent.nextClearBit(0) * mMap.getBlockSize(),
+                mMap.getLength());
+    }
+
+    /**
+     * Copy the known blocks and download the others. Returns early, leaving the
+     * interrupted status set, if the calling thread is interrupted.
+     */
+    void run(FileChannel output) throws IOException {
+        copyFromSeed(output);
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        final long copied = mBytesDone;
+        Log.d(TAG, "Found " + copied + " of " + mMap.getLength() + " bytes in " + mSeed);
+
+        final int blockSize = mMap.getBlockSize();
+        int first = mPresent.nextClearBit(0);
+        while (first < mBlocks && !Thread.currentThread().isInterrupted()) {
+            // Fetch runs of adjacent blocks with a single request
+            final int last = mPresent.nextSetBit(first);
+            final int end = last < 0 ? mBlocks : last;
+            try {
+                fetch(output, mUrls.get(mUrlIndex), (long) first * blockSize,
+                        Math.min((long) end * blockSize, mMap.getLength()));
+            } catch (IOException e) {
+                if (e instanceof ClosedChannelException || mUrlIndex + 1 >= mUrls.size()
+                        || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                mUrlIndex++;
+                Log.e(TAG, "Using duplicate link " + mUrls.get(mUrlIndex), e);
+            }
+            // What was written before an error isn't fetched again
+            first = mPresent.nextClearBit(first);
+        }
+        Log.d(TAG, "Downloaded " + (mBytesDone - copied) + " bytes");
+    }
+
+    private void copyFromSeed(FileChannel output) throws IOException {
+        final int blockSize = mMap.getBlockSize();
+        final MessageDigest digest;
+        try {
+            digest = mMap.newDigest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        // Holds the block being checked and the bytes rolled in after it
+        final byte[] window = new byte[Math.max(SCAN_BUFFER_SIZE, blockSize * 2)];
+        try (InputStream input = new FileInputStream(mSeed)) {
+            int start = 0;
+            int end = 0;
+            boolean eof = false;
+            boolean rolled = false;
+            int a = 0;
+            int b = 0;
+            for (;;) {
+                if (end - start <= blockSize && !eof) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    System.arraycopy(window, start, window, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int count;
+                    while (end < window.length
+                            && (count = input.read(window, end, window.length - end)) > 0) {
+                        end += count;
+                    }
+                    eof = end < window.length;
+                }
+                if (end - start < blockSize) {
+                    return;
+                }
+                if (!rolled) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        final int x = window[start + i] & 0xff;
+                        a += x;
+                        b += (blockSize - i) * x;
+                    }
+                    a &= 0xffff;
+                    b &= 0xffff;
+                    rolled = true;
+                }
+                final int checksum = a | (b << 16);
+                if (mMap.mightContain(checksum)) {
+                    final int[] blocks = mMap.findBlocks(checksum, window, start, digest);
+                    if (blocks != null) {
+                        write(output, blocks, window, start);
+                        // Blocks don't overlap, look for the next one past this one
+                        start += blockSize;
+                        rolled = false;
+                        continue;
+                    }
+                }
+                if (end - start == blockSize) {
+                    // Nothing left to roll in
+                    return;
+                }
+                final int out = window[start] & 0xff;
+                final int in = window[start + blockSize] & 0xff;
+                a = (a - out + in) & 0xffff;
+                b = (b - blockSize * out + a) & 0xffff;
+                start++;
+            }
+        }
+    }
+
+    private void write(FileChannel output, int[] blocks, byte[] b, int offset)
+            throws IOException {
+        final int blockSize = mMap.getBlockSize();
+        for (int block : blocks) {
+            if (mPresent.get(block)) {
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, offset, blockSize);
+            long position = (long) block * blockSize;
+            while (buffer.hasRemaining()) {
+                position += output.write(buffer, position);
+            }
+            synchronized (this) {
+                mPresent.set(block);
+            }
+            mBytesDone += blockSize;
+        }
+    }
+
+    private void fetch(FileChannel output, String url, long start, long end)
+            throws IOException {
+        HttpURLConnection connection = ConnectionManager.getInstance().open(url);
+        final BufferPool pool = BufferPool.getInstance();
+        final RateLimiter limiter = RateLimiter.getInstance();
+        ByteBuffer buffer = pool.acquire(BufferPool.MIN_SIZE);
+        try {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 206) {
+                ConnectionManager.getInstance().discard(connection);
+                throw new HttpStatusException(responseCode);
+            }
+            final int blockSize = mMap.getBlockSize();
+            try (InputStream inputStream = connection.getInputStream()) {
+                ReadableByteChannel source = Channels.newChannel(inputStream);
+                long position = start;
+                while (position < end && !Thread.currentThread().isInterrupted()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(Math.min(buffer.capacity(), end - position),
+                            limiter.getMaxRead()));
+                    final int count = BufferPool.fill(source, buffer);
+                    if (count <= 0) {
+                        throw new IOException("Range ended at " + position + ", expected " + end);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += output.write(buffer, position);
+                    }
+                    synchronized (this) {
+                        // Only the blocks completely written
+                        final int done = position == end
+                                ? (int) ((end + blockSize - 1) / blockSize)
+                                : (int) (position / blockSize);
+                        mPresent.set((int) (start / blockSize), done);
+                    }
+                    mBytesDone += count;
+                    // Leaves the interrupted status set if cancelled while waiting
+                    limiter.acquire(count);
+                }
+            }
+        } finally {
+            pool.release(buffer);
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashes a download as it is written, so that it can be checked against the
+ * expected digests as soon as the last byte lands instead of reading the whole
+ * file again. Bytes are hashed in order: when they are written out of order, as
+ * segmented downloads do, the digests catch up by reading back what was written,
+ * which for those means a second read of most of the file.
+ *
+ * The digests may be caught up by one thread while another one saves them.
+ */
+final class DigestVerifier {
+
+    private static final String TAG = "DigestVerifier";
+
+    private final Map<String, String> mExpected;
+    private final List<ResumableDigest> mDigests = new ArrayList<>();
+
+    /**
+     * @param expected the expected digests as hex, by algorithm
+     * @param saved the digests saved by a previous download of the same file, or null
+     */
+    DigestVerifier(Map<String, String> expected, JSONArray saved) {
+        mExpected = expected;
+        if (saved != null && saved.length() == expected.size()) {
+            try {
+                for (int i = 0; i < saved.length(); i++) {
+                    ResumableDigest digest = ResumableDigest.restore(saved.getJSONObject(i));
+                    if (!expected.containsKey(digest.getAlgorithm())) {
+                        throw new JSONException("Unexpected " + digest.getAlgorithm());
+                    } else if (!mDigests.isEmpty() && digest.getCount() != getPosition()) {
+                        throw new JSONException("Digests out of sync");
+                    }
+                    mDigests.add(digest);
+                }
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "Could not restore the digests, starting over", e);
+                mDigests.clear();
+            }
+        }
+        if (mDigests.isEmpty()) {
+            for (String algorithm : expected.keySet()) {
+                mDigests.add(ResumableDigest.create(algorithm));
+            }
+        }
+    }
+
+    /**
+     * @return how many bytes at the start of the file were hashed
+     */
+    synchronized long getPosition() {
+        return mDigests.get(0).getCount();
+    }
+
+    /**
+     * Hash the remaining bytes of the buffer, which must directly follow the bytes
+     * already hashed. The position of the buffer is left untouched.
+     */
+    synchronized void update(ByteBuffer buffer) {
+        for (ResumableDigest digest : mDigests) {
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * Hash the bytes of the file between the current position and the given end.
+     * This reads them back from the storage.
+     */
+    void catchUp(File file, long end) throws IOException {
+        if (getPosition() >= end) {
+            return;
+        }
+        final BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buffer = pool.acquire(BufferPool.MAX_SIZE);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            long position = getPosition();
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File ended at " + position + ", expected " + end);
+                }
+                buffer.flip();
+                update(buffer);
+                position += read;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * @return true if every digest matches the expected one
+     */
+    synchronized boolean verify() {
+        boolean matches = true;
+        for (ResumableDigest digest : mDigests) {
+            String actual = digest.digest();
+            String expected = mExpected.get(digest.getAlgorithm());
+            if (!actual.equalsIgnoreCase(expected)) {
+                Log.e(TAG, digest.getAlgorithm() + " mismatch, expected " + expected
+                        + ", got " + actual);
+                matches = false;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Hash a whole file and check it against the expected digests.
+     *
+     * @return true if every digest matches, or if none is expected
+     */
+    static boolean check(File file, Map<String, String> expected) {
+        if (expected.isEmpty()) {
+            return true;
+        }
+        DigestVerifier verifier = new DigestVerifier(expected, null);
+        try {
+            verifier.catchUp(file, file.length());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not hash " + file, e);
+            return false;
+        }
+        return verifier.verify();
+    }
+
+    synchronized JSONArray save() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (ResumableDigest digest : mDigests) {
+            array.put(digest.save());
+        }
+        return array;
+    }
+}
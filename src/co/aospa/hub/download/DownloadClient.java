@@ -17,17 +17,45 @@ package co.aospa.hub.download;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public interface DownloadClient {
 
+    // Update lists and configurations, which the user is waiting for
+    int PRIORITY_METADATA = 0;
+    // Packages the user asked for
+    int PRIORITY_USER = 1;
+    // Packages fetched ahead of time
+    int PRIORITY_BACKGROUND = 2;
+
     interface DownloadCallback {
+        int ERROR_INSUFFICIENT_STORAGE = 1;
+        int ERROR_DIGEST_MISMATCH = 2;
+
         void onResponse(int statusCode, String url, Headers headers);
 
         void onSuccess(File destination);
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Called instead of onFailure() when the download can't go on for a known
+         * reason, such as ERROR_INSUFFICIENT_STORAGE.
+         */
+        default void onError(int error) {
+            onFailure(false);
+        }
+
+        /**
+         * Called instead of onSuccess() when the server replied that the file didn't
+         * change since the validators set with Builder.setRequestProperty().
+         */
+        default void onNotModified() {
+            onFailure(false);
+        }
     }
 
     interface ProgressListener {
@@ -58,12 +86,95 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Get how many bytes of the destination were downloaded and can be resumed from.
+     * This can be less than the length of the destination, which is allocated up
+     * front.
+     */
+    static long getDownloadedBytes(File destination) {
+        return DownloadState.load(destination).getLength();
+    }
+
+    /**
+     * Limit the bandwidth used by all the downloads together. Takes effect right
+     * away, including for the downloads already running.
+     *
+     * @param bytesPerSecond the limit, 0 to download at full speed
+     */
+    static void setRateLimit(long bytesPerSecond) {
+        RateLimiter.getInstance().setRate(bytesPerSecond);
+    }
+
+    /**
+     * Keep what is learnt about the servers in the given directory, so that the
+     * next downloads know how to download from them before connecting.
+     */
+    static void setCacheDir(File dir) {
+        HostCapabilities.getInstance().setCacheDir(dir);
+    }
+
+    /**
+     * Get the download of the given url ready in the background, so that it starts
+     * sooner once requested: its redirect is followed ahead of time and kept for a
+     * few minutes, the hosts of its mirrors are resolved and a connection to where
+     * it redirects is left in the pool.
+     */
+    static void prewarm(String url) {
+        Prewarmer.prewarm(url);
+    }
+
+    /**
+     * Delete the destination along with the state of its download.
+     *
+     * @return true if the destination was deleted
+     */
+    static boolean delete(File destination) {
+        DownloadState.create(destination).delete();
+        return destination.delete();
+    }
+
+    /**
+     * Check a complete destination against the given digests, like a download
+     * built with setMd5() and setSha256() does. Values that aren't a valid digest
+     * are ignored. This method blocks until done.
+     *
+     * @return true if the destination matches every digest
+     */
+    static boolean checkDigests(File destination, String md5, String sha256) {
+        Builder builder = new Builder().setMd5(md5).setSha256(sha256);
+        return DigestVerifier.check(destination, builder.mDigests);
+    }
+
+    /**
+     * Download again the chunks of a complete destination that don't match the
+     * chunk manifest published at manifestUrl, keeping the rest of the file. This
+     * method blocks until done.
+     *
+     * @return true if chunks were downloaded again and the destination matches
+     * the manifest afterwards, false if none of them was corrupted
+     */
+    static boolean repair(String url, File destination, String manifestUrl) {
+        return ChunkRepair.run(url, destination, manifestUrl);
+    }
+
     final class Builder {
         private String mUrl;
         private File mDestination;
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mSegments = 1;
+        private int mRaceMirrors;
+        private boolean mStripeDuplicateLinks;
+        private final Map<String, String> mDigests = new HashMap<>();
+        private String mChunkManifestUrl;
+        private final Map<String, String> mRequestProperties = new HashMap<>();
+        private boolean mCompressed;
+        private int mPriority = PRIORITY_USER;
+        private File mDeltaSeed;
+        private String mBlockMapUrl;
+        private final List<String> mPeerUrls = new ArrayList<>();
+        private long mCheckpointInterval = DownloadState.DEFAULT_CHECKPOINT_INTERVAL;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -74,7 +185,9 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download callback defined");
             }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mSegments, mRaceMirrors, mStripeDuplicateLinks,
+                    mDigests, mChunkManifestUrl, mRequestProperties, mCompressed, mPriority,
+                    mDeltaSeed, mBlockMapUrl, mPeerUrls, mCheckpointInterval);
         }
 
         public Builder setUrl(String url) {
@@ -101,5 +214,144 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Split the download in the given number of byte ranges and fetch them
+         * concurrently. The download falls back to a single stream if the server
+         * doesn't fulfil partial content requests, and a new download keeps to a
+         * single stream from servers known to speak h2 or to answer within a few
+         * milliseconds. A resumed download carries on with the segments it was
+         * stopped with.
+         */
+        public Builder setSegments(int segments) {
+            mSegments = Math.max(1, segments);
+            return this;
+        }
+
+        /**
+         * Probe up to the given number of duplicate links at the same time and
+         * download from the one that answers fastest. Only used together with
+         * setUseDuplicateLinks().
+         */
+        public Builder setRaceDuplicateLinks(int mirrors) {
+            mRaceMirrors = mirrors;
+            return this;
+        }
+
+        /**
+         * Spread the segments of the download over the duplicate links, so that
+         * the bandwidth of several mirrors can be used at once. Only used together
+         * with setUseDuplicateLinks() and setSegments().
+         */
+        public Builder setStripeDuplicateLinks(boolean stripeDuplicateLinks) {
+            mStripeDuplicateLinks = stripeDuplicateLinks;
+            return this;
+        }
+
+        /**
+         * Check the MD5 of the file while it is downloaded. The download fails with
+         * ERROR_DIGEST_MISMATCH if it doesn't match. Values that aren't a valid MD5
+         * are ignored.
+         */
+        public Builder setMd5(String md5) {
+            setDigest(ResumableDigest.MD5, md5, 32);
+            return this;
+        }
+
+        /**
+         * Check the SHA-256 of the file while it is downloaded, like setMd5().
+         */
+        public Builder setSha256(String sha256) {
+            setDigest(ResumableDigest.SHA_256, sha256, 64);
+            return this;
+        }
+
+        /**
+         * Use the chunk manifest published at the given url to check the bytes
+         * already downloaded before resuming. When there's none, a manifest is built
+         * locally as the download goes, which catches what the storage lost.
+         */
+        public Builder setChunkManifestUrl(String url) {
+            mChunkManifestUrl = url;
+            return this;
+        }
+
+        /**
+         * Send the given header with the request, such as If-None-Match.
+         */
+        public Builder setRequestProperty(String key, String value) {
+            mRequestProperties.put(key, value);
+            return this;
+        }
+
+        /**
+         * Let the server compress the reply, for text such as JSON. Only the first
+         * attempt of a single stream download asks for it, since the byte ranges of
+         * a resumed or segmented download can't apply to a compressed reply.
+         */
+        public Builder setCompressed(boolean compressed) {
+            mCompressed = compressed;
+            return this;
+        }
+
+        /**
+         * Set how urgent the download is, one of the PRIORITY_ values. Downloads of
+         * a higher priority go first and can pause the others to get a connection.
+         */
+        public Builder setPriority(int priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        /**
+         * Build the file out of the blocks it shares with the given one, such as the
+         * previous version of it. Only used together with setBlockMapUrl(), when
+         * starting a download.
+         */
+        public Builder setDeltaSeed(File seed) {
+            mDeltaSeed = seed;
+            return this;
+        }
+
+        /**
+         * Use the block map published at the given url to find the blocks of the
+         * file in the delta seed. When there's none, the file is downloaded as a
+         * whole.
+         */
+        public Builder setBlockMapUrl(String url) {
+            mBlockMapUrl = url;
+            return this;
+        }
+
+        /**
+         * Try to download the file from the given peers of the local network before
+         * the server. Only useful together with setMd5() or setSha256(), peers
+         * aren't trusted.
+         */
+        public Builder setPeerUrls(List<String> urls) {
+            mPeerUrls.clear();
+            mPeerUrls.addAll(urls);
+            return this;
+        }
+
+        /**
+         * Set how many bytes are downloaded between two checkpoints, where what was
+         * downloaded is synced to the storage and the progress saved. Resuming after
+         * a crash starts from the last one.
+         *
+         * @param bytes the interval, 0 to checkpoint after every write
+         */
+        public Builder setCheckpointInterval(long bytes) {
+            mCheckpointInterval = bytes;
+            return this;
+        }
+
+        private void setDigest(String algorithm, String digest, int length) {
+            if (digest != null && digest.matches("[0-9a-fA-F]{" + length + "}")) {
+                mDigests.put(algorithm, digest);
+            } else {
+                mDigests.remove(algorithm);
+            }
+        }
     }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decides when downloads run. Downloads wait in a queue ordered by priority,
+ * and only a few of them run against the same host at once. When a host is
+ * busy, a download takes the place of a running one of lower priority, which
+ * is paused and queued again to resume later, so that a metadata refresh never
+ * waits for a package to finish.
+ */
+final class DownloadScheduler {
+
+    private static final String TAG = "DownloadScheduler";
+
+    private static final int MAX_PER_HOST = 2;
+
+    private static DownloadScheduler sInstance;
+
+    interface Job {
+        String getHost();
+
+        /**
+         * @return one of the DownloadClient.PRIORITY_ values
+         */
+        int getPriorityClass();
+
+        void start();
+
+        /**
+         * Stop the job so that it can be queued again. The scheduler doesn't count
+         * it as running anymore once this is called.
+         */
+        void preempt();
+    }
+
+    private static final class Entry {
+        private final Job mJob;
+        private final long mSequence;
+
+        private Entry(Job job, long sequence) {
+            mJob = job;
+            mSequence = sequence;
+        }
+    }
+
+    // Lower priority values first, then in the order they were submitted
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<>(
+            Comparator.comparingInt((Entry e) -> e.mJob.getPriorityClass())
+                    .thenComparingLong(e -> e.mSequence));
+    private final List<Job> mRunning = new ArrayList<>();
+    private long mSequence;
+
+    private DownloadScheduler() {
+    }
+
+    static synchronized DownloadScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new DownloadScheduler();
+        }
+        return sInstance;
+    }
+
+    synchronized void submit(Job job) {
+        mQueue.add(new Entry(job, mSequence++));
+        dispatch();
+    }
+
+    /**
+     * @return true if the job was still waiting and won't run anymore
+     */
+    synchronized boolean cancel(Job job) {
+        Iterator<Entry> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mJob == job) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void finished(Job job) {
+        if (mRunning.remove(job)) {
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        List<Entry> waiting = new ArrayList<>();
+        while (!mQueue.isEmpty()) {
+            Entry entry = mQueue.poll();
+            final Job job = entry.mJob;
+            final String host = job.getHost();
+            if (countRunning(host) >= MAX_PER_HOST) {
+                Job victim = findVictim(host, job.getPriorityClass());
+                if (victim == null) {
+                    waiting.add(entry);
+                    continue;
+                }
+                Log.d(TAG, "Pausing a download of priority " + victim.getPriorityClass()
+                        + " for one of priority " + job.getPriorityClass() + " on " + host);
+                mRunning.remove(victim);
+                victim.preempt();
+            }
+            mRunning.add(job);
+            job.start();
+        }
+        mQueue.addAll(waiting);
+    }
+
+    private int countRunning(String host) {
+        int count = 0;
+        for (Job job : mRunning) {
+            if (job.getHost().equals(host)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the running job of the lowest priority on the host if it is lower
+     * than the given one, or null
+     */
+    private Job findVictim(String host, int priority) {
+        Job victim = null;
+        for (Job job : mRunning) {
+            if (job.getHost().equals(host) && job.getPriorityClass() > priority
+                    && (victim == null || job.getPriorityClass() > victim.getPriorityClass())) {
+                victim = job;
+            }
+        }
+        return victim;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Progress of a download, kept in a file next to the destination. Since the
+ * destination is allocated to its full size before any byte is downloaded, its
+ * length can't tell how much of it can be resumed from anymore.
+ *
+ * The progress is only saved at checkpoints, once what was written to the
+ * destination is synced to the storage, so that the saved length never claims
+ * bytes a crash or a power loss could still take away.
+ */
+final class DownloadState {
+
+    private static final String TAG = "DownloadState";
+
+    private static final String SUFFIX = ".state";
+    static final long DEFAULT_CHECKPOINT_INTERVAL = 8 * 1024 * 1024;
+
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_DIGESTS = "digests";
+    private static final String KEY_CHUNKS = "chunks";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_SEGMENTS = "segments";
+
+    private final File mDestination;
+    private final AtomicFile mFile;
+    private long mLength;
+    private JSONArray mSavedDigests;
+    private DigestVerifier mVerifier;
+    private ChunkManifest mChunks;
+    private String mEtag;
+    private long[][] mSegments;
+    private long mCheckpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private long mCheckpointLength;
+
+    private DownloadState(File destination) {
+        mDestination = destination;
+        mFile = new AtomicFile(new File(destination.getPath() + SUFFIX));
+    }
+
+    /**
+     * @return a new state for a download starting from scratch
+     */
+    static DownloadState create(File destination) {
+        return new DownloadState(destination);
+    }
+
+    /**
+     * @return the saved state of the download, or the state matching the length
+     * of the destination if none was saved
+     */
+    static DownloadState load(File destination) {
+        DownloadState state = new DownloadState(destination);
+        if (!destination.exists()) {
+            return state;
+        }
+        state.mLength = destination.length();
+        try {
+            JSONObject object = new JSONObject(
+                    new String(state.mFile.readFully(), StandardCharsets.UTF_8));
+            state.mLength = Math.min(state.mLength, object.getLong(KEY_LENGTH));
+            state.mSavedDigests = object.optJSONArray(KEY_DIGESTS);
+            state.mEtag = object.optString(KEY_ETAG, null);
+            JSONArray segments = object.optJSONArray(KEY_SEGMENTS);
+            if (segments != null) {
+                state.mSegments = new long[segments.length()][];
+                for (int i = 0; i < segments.length(); i++) {
+                    JSONArray segment = segments.getJSONArray(i);
+                    state.mSegments[i] = new long[] {
+                            segment.getLong(0), segment.getLong(1), segment.getLong(2) };
+                }
+            }
+            JSONObject chunks = object.optJSONObject(KEY_CHUNKS);
+            if (chunks != null) {
+                state.mChunks = ChunkManifest.restore(chunks);
+            }
+        } catch (FileNotFoundException e) {
+            // Downloaded before the file was allocated up front, or complete
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read the state of " + destination, e);
+            // Nothing past the start can be trusted
+            state.mLength = 0;
+        }
+        state.mCheckpointLength = state.mLength;
+        return state;
+    }
+
+    /**
+     * Set how many bytes are downloaded between two checkpoints. Checkpoints
+     * cost a sync of the destination, skipping them costs downloading again
+     * what was downloaded since the last one after a crash.
+     *
+     * @param bytes the interval, 0 to checkpoint after every write
+     */
+    void setCheckpointInterval(long bytes) {
+        mCheckpointInterval = bytes;
+    }
+
+    /**
+     * @return how many bytes at the start of the destination are downloaded
+     */
+    long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the digests of the downloaded bytes as they were last saved, or null
+     */
+    JSONArray getSavedDigests() {
+        return mSavedDigests;
+    }
+
+    /**
+     * Save the digests of the given verifier along with the length. The verifier
+     * must never be ahead of the length.
+     */
+    void setVerifier(DigestVerifier verifier) {
+        mVerifier = verifier;
+    }
+
+    /**
+     * @return the chunk manifest of the destination, or null if it has none yet
+     */
+    ChunkManifest getChunks() {
+        return mChunks;
+    }
+
+    /**
+     * Save the given manifest along with the length. A local manifest must never
+     * cover more than the length.
+     */
+    void setChunks(ChunkManifest chunks) {
+        mChunks = chunks;
+    }
+
+    /**
+     * @return the ETag of the file the destination is a part of, or null
+     */
+    String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * Save the ETag the server sent along with the start of the file, so that
+     * resuming can make sure the rest comes from the same file.
+     */
+    void setEtag(String etag) {
+        mEtag = etag;
+    }
+
+    /**
+     * @return the layout of the segmented download the destination is a part of,
+     * as saved by setSegments(), or null
+     */
+    long[][] getSegments() {
+        return mSegments;
+    }
+
+    /**
+     * Save the layout of a segmented download along with the length, so that the
+     * segments past the length don't have to be downloaded again when resuming.
+     * Every byte the layout claims must already be written.
+     *
+     * @param segments the start, end and position of every segment, or null if
+     * the download isn't segmented
+     */
+    void setSegments(long[][] segments) {
+        mSegments = segments;
+    }
+
+    /**
+     * Update the downloaded length, saving it only at the next checkpoint.
+     */
+    void setLength(long length) {
+        mLength = length;
+        if (length < mCheckpointLength || length - mCheckpointLength >= mCheckpointInterval) {
+            save();
+        }
+    }
+
+    /**
+     * Save the state as a checkpoint, the bytes it claims must all be written.
+     */
+    void save() {
+        if (mLength > 0 && !sync()) {
+            // Better resume from the previous checkpoint than from bytes that may be lost
+            return;
+        }
+        mCheckpointLength = mLength;
+        FileOutputStream outputStream = null;
+        try {
+            JSONObject object = new JSONObject();
+            object.put(KEY_LENGTH, mLength);
+            object.putOpt(KEY_ETAG, mEtag);
+            if (mSegments != null) {
+                JSONArray segments = new JSONArray();
+                for (long[] segment : mSegments) {
+                    segments.put(new JSONArray()
+                            .put(segment[0]).put(segment[1]).put(segment[2]));
+                }
+                object.put(KEY_SEGMENTS, segments);
+            }
+            if (mVerifier != null) {
+                object.put(KEY_DIGESTS, mVerifier.save());
+            }
+            if (mChunks != null) {
+                object.put(KEY_CHUNKS, mChunks.save());
+            }
+            outputStream = mFile.startWrite();
+            outputStream.write(object.toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(outputStream);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not save the state of " + mDestination, e);
+            if (outputStream != null) {
+                mFile.failWrite(outputStream);
+            }
+        }
+    }
+
+    private boolean sync() {
+        // Syncing any descriptor of the file syncs what every other one wrote
+        try (RandomAccessFile file = new RandomAccessFile(mDestination, "r")) {
+            file.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not sync " + mDestination, e);
+            return false;
+        }
+    }
+
+    /**
+     * Forget the state, once the destination is complete or gone.
+     */
+    void delete() {
+        mFile.delete();
+    }
+}
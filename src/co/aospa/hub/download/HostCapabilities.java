@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the servers told about themselves the last times they were asked, by the
+ * host of the urls downloads are started from. Lets a download pick between a
+ * single stream and segments, and its buffer size, before connecting rather than
+ * finding out from the reply. Kept in a file so that it survives the process.
+ *
+ * Only what holds for every file of a host is kept, the same host serves both
+ * small metadata and the update packages.
+ */
+final class HostCapabilities {
+
+    private static final String TAG = "HostCapabilities";
+
+    private static final String FILE_NAME = "hosts.json";
+    private static final int MAX_HOSTS = 16;
+    // Servers and CDNs change, forget what's older than this
+    private static final long MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String KEY_RANGES = "ranges";
+    private static final String KEY_PROTOCOL = "protocol";
+    private static final String KEY_RTT = "rtt";
+    private static final String KEY_SPEED = "speed";
+    private static final String KEY_TIME = "time";
+
+    private static HostCapabilities sInstance;
+
+    private final Map<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_HOSTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_HOSTS;
+                }
+            };
+    private AtomicFile mFile;
+
+    static final class Entry {
+        // Null until a range was asked for
+        private Boolean mRanges;
+        private String mProtocol;
+        private long mRttMillis = -1;
+        private long mSpeed = -1;
+        private long mTime;
+
+        /**
+         * @return whether the server serves ranges, or null if unknown
+         */
+        Boolean acceptsRanges() {
+            return mRanges;
+        }
+
+        /**
+         * @return the protocol negotiated with the server, like h2 or http/1.1
+         */
+        String getProtocol() {
+            return mProtocol;
+        }
+
+        /**
+         * @return how long the last request took to get its reply, or -1
+         */
+        long getRttMillis() {
+            return mRttMillis;
+        }
+
+        /**
+         * @return the speed of the last download from the server, or -1
+         */
+        long getSpeed() {
+            return mSpeed;
+        }
+
+        private JSONObject save() throws JSONException {
+            JSONObject object = new JSONObject();
+            if (mRanges != null) {
+                object.put(KEY_RANGES, mRanges);
+            }
+            object.putOpt(KEY_PROTOCOL, mProtocol);
+            object.put(KEY_RTT, mRttMillis);
+            object.put(KEY_SPEED, mSpeed);
+            object.put(KEY_TIME, mTime);
+            return object;
+        }
+
+        private static Entry restore(JSONObject object) throws JSONException {
+            Entry entry = new Entry();
+            if (object.has(KEY_RANGES)) {
+                entry.mRanges = object.getBoolean(KEY_RANGES);
+            }
+            entry.mProtocol = object.optString(KEY_PROTOCOL, null);
+            entry.mRttMillis = object.optLong(KEY_RTT, -1);
+            entry.mSpeed = object.optLong(KEY_SPEED, -1);
+            entry.mTime = object.getLong(KEY_TIME);
+            return entry;
+        }
+
+        @Override
+        public String toString() {
+            return "ranges=" + mRanges + " protocol=" + mProtocol + " rtt=" + mRttMillis
+                    + "ms speed=" + mSpeed;
+        }
+    }
+
+    private HostCapabilities() {
+    }
+
+    static synchronized HostCapabilities getInstance() {
+        if (sInstance == null) {
+            sInstance = new HostCapabilities();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Keep the capabilities in the given directory, loading what was kept there.
+     */
+    synchronized void setCacheDir(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+        mEntries.clear();
+        try {
+            JSONObject object = new JSONObject(
+                    new String(mFile.readFully(), StandardCharsets.UTF_8));
+            Iterator<String> hosts = object.keys();
+            while (hosts.hasNext()) {
+                String host = hosts.next();
+                mEntries.put(host, Entry.restore(object.getJSONObject(host)));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing learnt yet
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read " + mFile.getBaseFile(), e);
+        }
+    }
+
+    /**
+     * @return what is known about the host, or null if nothing recent
+     */
+    synchronized Entry get(String host) {
+        Entry entry = mEntries.get(host);
+        if (entry != null && System.currentTimeMillis() - entry.mTime > MAX_AGE_MS) {
+            mEntries.remove(host);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Learn from the reply to a request made for a range of a file of the given
+     * host. Replies to whole files, like metadata, tell nothing about ranges and
+     * mustn't be given.
+     *
+     * @param connection a connection that has its response code
+     * @param rttMillis how long the reply took, or -1 if unknown
+     */
+    void onResponse(String host, HttpURLConnection connection, long rttMillis)
+            throws IOException {
+        final int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK
+                && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = mEntries.get(host);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(host, entry);
+            }
+            entry.mRanges = responseCode == HttpURLConnection.HTTP_PARTIAL;
+            // Set by the platform, the status line always reads HTTP/1.1
+            String protocol = connection.getHeaderField("X-Android-Selected-Protocol");
+            entry.mProtocol = protocol != null ? protocol : connection.getHeaderField(0);
+            if (rttMillis >= 0) {
+                entry.mRttMillis = rttMillis;
+            }
+            entry.mTime = System.currentTimeMillis();
+            Log.d(TAG, host + ": " + entry);
+            save();
+        }
+    }
+
+    /**
+     * Remember how fast the last download from the host went.
+     */
+    synchronized void onSpeed(String host, long bytesPerSecond) {
+        Entry entry = mEntries.get(host);
+        if (entry == null || bytesPerSecond <= 0) {
+            return;
+        }
+        entry.mSpeed = bytesPerSecond;
+        save();
+    }
+
+    private void save() {
+        if (mFile == null) {
+            return;
+        }
+        FileOutputStream outputStream = null;
+        try {
+            JSONObject object = new JSONObject();
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                object.put(entry.getKey(), entry.getValue().save());
+            }
+            outputStream = mFile.startWrite();
+            outputStream.write(object.toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(outputStream);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not save " + mFile.getBaseFile(), e);
+            if (outputStream != null) {
+                mFile.failWrite(outputStream);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server replies to a download with an unexpected status code.
+ */
+final class HttpStatusException extends IOException {
+
+    private final int mStatusCode;
+
+    HttpStatusException(int statusCode) {
+        super("Server replied with " + statusCode);
+        mStatusCode = statusCode;
+    }
+
+    int getStatusCode() {
+        return mStatusCode;
+    }
+}
@@ -16,16 +16,28 @@
 package co.aospa.hub.download;
 
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
@@ -36,14 +48,40 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // Don't bother splitting ranges smaller than this
+    private static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+    // A single stream fills the link to servers that answer this fast
+    private static final long MAX_SINGLE_STREAM_RTT_MS = 20;
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    // Peers are on the local network, they answer quickly or not at all
+    private static final int PEER_TIMEOUT_MS = 2000;
+
     private HttpURLConnection mClient;
 
+    private final String mUrl;
+    private final String mHost;
+    private final int mPriority;
+
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mSegments;
+    private final int mRaceMirrors;
+    private final boolean mStripeDuplicateLinks;
+    // Expected digests of the file, by algorithm
+    private final Map<String, String> mDigests;
+    private final String mChunkManifestUrl;
+    private final Map<String, String> mRequestProperties;
+    private final boolean mCompressed;
+    private final File mDeltaSeed;
+    private final String mBlockMapUrl;
+    private final List<String> mPeerUrls;
+    private final long mCheckpointInterval;
 
     private DownloadThread mDownloadThread;
+    private DownloadState mState;
+    private DigestVerifier mVerifier;
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -60,25 +98,45 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
+            boolean useDuplicateLinks, int segments, int raceMirrors,
+            boolean stripeDuplicateLinks, Map<String, String> digests,
+            String chunkManifestUrl, Map<String, String> requestProperties,
+            boolean compressed, int priority, File deltaSeed, String blockMapUrl,
+            List<String> peerUrls, long checkpointInterval) throws IOException {
+        mUrl = url;
+        mRequestProperties = requestProperties;
+        mClient = openConnection(new URL(url));
+        mHost = mClient.getURL().getHost();
+        mPriority = priority;
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mSegments = segments;
+        mRaceMirrors = raceMirrors;
+        mStripeDuplicateLinks = stripeDuplicateLinks;
+        mDigests = digests;
+        mChunkManifestUrl = chunkManifestUrl;
+        mCompressed = compressed;
+        mDeltaSeed = deltaSeed;
+        mBlockMapUrl = blockMapUrl;
+        mPeerUrls = peerUrls;
+        mCheckpointInterval = checkpointInterval;
     }
 
     @Override
-    public void start() {
+    public synchronized void start() {
         if (mDownloadThread != null) {
             Log.e(TAG, "Already downloading");
             return;
         }
+        mState = DownloadState.create(mDestination);
+        mState.setCheckpointInterval(mCheckpointInterval);
         downloadFileInternalCommon(false);
     }
 
     @Override
-    public void resume() {
+    public synchronized void resume() {
         if (mDownloadThread != null) {
             Log.e(TAG, "Already downloading");
             return;
@@ -87,12 +145,17 @@ public class HttpURLConnectionClient implements DownloadClient {
     }
 
     @Override
-    public void cancel() {
+    public synchronized void cancel() {
         if (mDownloadThread == null) {
             Log.e(TAG, "Not downloading");
             return;
         }
-        mDownloadThread.interrupt();
+        if (DownloadScheduler.getInstance().cancel(mDownloadThread)) {
+            // It never started, report it like any cancelled download
+            mCallback.onFailure(true);
+        } else {
+            mDownloadThread.interrupt();
+        }
         mDownloadThread = null;
     }
 
@@ -101,11 +164,31 @@ public class HttpURLConnectionClient implements DownloadClient {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
-        mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+        mState = DownloadState.load(mDestination);
+        mState.setCheckpointInterval(mCheckpointInterval);
         downloadFileInternalCommon(true);
     }
 
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = ConnectionManager.getInstance().open(url);
+        for (Map.Entry<String, String> property : mRequestProperties.entrySet()) {
+            connection.setRequestProperty(property.getKey(), property.getValue());
+        }
+        return connection;
+    }
+
+    private DigestVerifier createVerifier() {
+        if (mDigests.isEmpty()) {
+            return null;
+        }
+        DigestVerifier verifier = new DigestVerifier(mDigests, mState.getSavedDigests());
+        if (verifier.getPosition() > mState.getLength()) {
+            verifier = new DigestVerifier(mDigests, null);
+        }
+        mState.setVerifier(verifier);
+        return verifier;
+    }
+
     private void downloadFileInternalCommon(boolean resume) {
         if (mDownloadThread != null) {
             Log.wtf(TAG, "Already downloading");
@@ -113,7 +196,30 @@ public class HttpURLConnectionClient implements DownloadClient {
         }
 
         mDownloadThread = new DownloadThread(resume);
-        mDownloadThread.start();
+        DownloadScheduler.getInstance().submit(mDownloadThread);
+    }
+
+    /**
+     * Queue the download again once the given thread was preempted, unless it was
+     * cancelled in the meantime.
+     */
+    private synchronized void requeue(DownloadThread thread) {
+        if (mDownloadThread != thread) {
+            mCallback.onFailure(true);
+            return;
+        }
+        try {
+            mClient = openConnection(new URL(mUrl));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not reconnect to " + mUrl, e);
+            mDownloadThread = null;
+            mCallback.onFailure(false);
+            return;
+        }
+        mState = DownloadState.load(mDestination);
+        mState.setCheckpointInterval(mCheckpointInterval);
+        mDownloadThread = new DownloadThread(true);
+        DownloadScheduler.getInstance().submit(mDownloadThread);
     }
 
     private static boolean isSuccessCode(int statusCode) {
@@ -128,92 +234,188 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
-    private class DownloadThread extends Thread {
+    /**
+     * Headers of the file put together by a delta download, as if it had been
+     * downloaded as a whole.
+     */
+    private static class DeltaHeaders implements DownloadClient.Headers {
+        private final Map<String, List<String>> mFields = new HashMap<>();
+
+        private DeltaHeaders(long length) {
+            mFields.put("Content-Length", Collections.singletonList(Long.toString(length)));
+        }
+
+        @Override
+        public String get(String name) {
+            List<String> values = mFields.get(name);
+            return values == null ? null : values.get(0);
+        }
+
+        @Override
+        public Map<String, List<String>> getAll() {
+            return mFields;
+        }
+    }
+
+    static final class DuplicateLink {
+        final String mUrl;
+        final int mPriority;
+
+        private DuplicateLink(String url, int priority) {
+            mUrl = url;
+            mPriority = priority;
+        }
+    }
+
+    /**
+     * @return the duplicate links advertised by the given header fields, best
+     * first, or null if there's no Link header
+     */
+    static PriorityQueue<DuplicateLink> getDuplicateLinks(
+            Map<String, List<String>> headerFields) {
+        PriorityQueue<DuplicateLink> duplicates = null;
+
+        for (Map.Entry<String, List<String>> entry : headerFields.entrySet()) {
+            if ("Link".equalsIgnoreCase((entry.getKey()))) {
+                duplicates = new PriorityQueue<>(entry.getValue().size(),
+                        Comparator.comparingInt(d -> d.mPriority));
+
+                // https://tools.ietf.org/html/rfc6249
+                // https://tools.ietf.org/html/rfc5988#section-5
+                String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
+                Pattern pattern = Pattern.compile(regex);
+                for (String field : entry.getValue()) {
+                    Matcher matcher = pattern.matcher(field);
+                    if (matcher.matches()) {
+                        String url = matcher.group(1);
+                        String pri = matcher.group(2);
+                        int priority = pri != null ? Integer.parseInt(pri) : 999999;
+                        duplicates.add(new DuplicateLink(url, priority));
+                        Log.d(TAG, "Adding duplicate link " + url);
+                    } else {
+                        Log.d(TAG, "Ignoring link " + field);
+                    }
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    private class DownloadThread extends Thread implements DownloadScheduler.Job {
 
         private long mTotalBytes = 0;
-        private long mTotalBytesRead = 0;
+        // Also read by the progress sampler
+        private volatile long mTotalBytesRead = 0;
+
+        private boolean mResume;
+
+        // Other mirrors of the file being downloaded, fastest or preferred first
+        private final List<String> mMirrors = new ArrayList<>();
 
-        private long mCurSampleBytes = 0;
-        private long mLastMillis = 0;
-        private long mSpeed = -1;
-        private long mEta = -1;
+        private ChunkManifest mChunks;
 
-        private final boolean mResume;
+        private volatile boolean mPreempted;
+        private boolean mRequeue;
+
+        // Cleared once a peer failed us, the server is more reliable
+        private boolean mUsePeers = true;
+        private boolean mFromPeer;
 
         private DownloadThread(boolean resume) {
             mResume = resume;
         }
 
-        private void calculateSpeed() {
-            final long millis = SystemClock.elapsedRealtime();
-            final long delta = millis - mLastMillis;
-            if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
-                if (mSpeed == -1) {
-                    mSpeed = curSpeed;
-                } else {
-                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
-                }
+        @Override
+        public String getHost() {
+            return mHost;
+        }
 
-                mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
-            }
+        @Override
+        public int getPriorityClass() {
+            return mPriority;
+        }
+
+        @Override
+        public void preempt() {
+            mPreempted = true;
+            interrupt();
         }
 
-        private void calculateEta() {
-            if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+        /**
+         * Report that the download stopped because it was interrupted.
+         */
+        private void onCancelled() {
+            synchronized (HttpURLConnectionClient.this) {
+                if (mPreempted && mDownloadThread == this) {
+                    // Not for long, it goes back in the queue
+                    mRequeue = true;
+                    return;
+                }
             }
+            mCallback.onFailure(true);
         }
 
-        private void changeClientUrl(URL newUrl) throws IOException {
+        private void changeClientUrl(URL newUrl, boolean connected) throws IOException {
             String range = mClient.getRequestProperty("Range");
+            String ifRange = mClient.getRequestProperty("If-Range");
+            if (connected) {
+                ConnectionManager.getInstance().discard(mClient);
+            }
             mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
+            mClient = openConnection(newUrl);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
+            if (ifRange != null) {
+                mClient.setRequestProperty("If-Range", ifRange);
+            }
         }
 
-        private void handleDuplicateLinks() throws IOException {
+        /**
+         * @param location where the original url redirects to
+         * @param headerFields the header fields of the redirect
+         * @param connected whether mClient made the request that redirected, rather
+         * than the redirect being known from a prewarm
+         */
+        private void handleDuplicateLinks(String location,
+                Map<String, List<String>> headerFields, boolean connected) throws IOException {
             String protocol = mClient.getURL().getProtocol();
+            PriorityQueue<DuplicateLink> duplicates = getDuplicateLinks(headerFields);
 
-            class DuplicateLink {
-                private final String mUrl;
-                private final int mPriority;
-                private DuplicateLink(String url, int priority) {
-                    mUrl = url;
-                    mPriority = priority;
-                }
-            }
-
-            PriorityQueue<DuplicateLink> duplicates = null;
-
-            for (Map.Entry<String, List<String>> entry : mClient.getHeaderFields().entrySet()) {
-                if ("Link".equalsIgnoreCase((entry.getKey()))) {
-                    duplicates = new PriorityQueue<>(entry.getValue().size(),
-                            Comparator.comparingInt(d -> d.mPriority));
-
-                    // https://tools.ietf.org/html/rfc6249
-                    // https://tools.ietf.org/html/rfc5988#section-5
-                    String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
-                    Pattern pattern = Pattern.compile(regex);
-                    for (String field : entry.getValue()) {
-                        Matcher matcher = pattern.matcher(field);
-                        if (matcher.matches()) {
-                            String url = matcher.group(1);
-                            String pri = matcher.group(2);
-                            int priority = pri != null ? Integer.parseInt(pri) : 999999;
-                            duplicates.add(new DuplicateLink(url, priority));
-                            Log.d(TAG, "Adding duplicate link " + url);
-                        } else {
-                            Log.d(TAG, "Ignoring link " + field);
-                        }
+            String newUrl = location;
+            if (mRaceMirrors > 1 && duplicates != null && !duplicates.isEmpty()) {
+                // The advertised priority doesn't say anything about how congested
+                // a mirror is, so race the best ones and stick to the fastest
+                List<String> candidates = new ArrayList<>(mRaceMirrors);
+                candidates.add(newUrl);
+                PriorityQueue<DuplicateLink> ranked = new PriorityQueue<>(duplicates);
+                while (candidates.size() < mRaceMirrors && !ranked.isEmpty()) {
+                    String url = ranked.poll().mUrl;
+                    if (!candidates.contains(url) && url.startsWith(protocol + ":")) {
+                        candidates.add(url);
+                    }
+                }
+                List<MirrorRace.Result> results = MirrorRace.run(candidates);
+                for (MirrorRace.Result result : results) {
+                    mMirrors.add(result.mUrl);
+                }
+                if (!results.isEmpty()) {
+                    final String fastest = results.get(0).mUrl;
+                    Log.d(TAG, "Fastest mirror is " + fastest);
+                    duplicates.removeIf(d -> d.mUrl.equals(fastest));
+                    newUrl = fastest;
+                }
+            }
+            if (mMirrors.isEmpty() && duplicates != null) {
+                mMirrors.add(newUrl);
+                PriorityQueue<DuplicateLink> ranked = new PriorityQueue<>(duplicates);
+                while (!ranked.isEmpty()) {
+                    String url = ranked.poll().mUrl;
+                    if (!mMirrors.contains(url) && url.startsWith(protocol + ":")) {
+                        mMirrors.add(url);
                     }
                 }
             }
-
-            String newUrl = mClient.getHeaderField("Location");
             for (;;) {
                 try {
                     URL url = new URL(newUrl);
@@ -223,7 +425,8 @@ public class HttpURLConnectionClient implements DownloadClient {
                         throw new IOException("Protocol changes are not allowed");
                     }
                     Log.d(TAG, "Downloading from " + newUrl);
-                    changeClientUrl(url);
+                    changeClientUrl(url, connected);
+                    connected = true;
                     mClient.setConnectTimeout(5000);
                     mClient.connect();
                     if (isSuccessCode(mClient.getResponseCode())) {
@@ -244,64 +447,627 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        /**
+         * Reserve the space for the whole file before writing to it, so that it is
+         * laid out contiguously and the download doesn't run out of space halfway.
+         *
+         * @param offset where the download resumes from
+         * @param size the final size of the file, or -1 if unknown
+         * @return false if there isn't enough space left
+         */
+        private boolean allocate(RandomAccessFile file, long offset, long size)
+                throws IOException {
+            if (offset == 0 && mState.getSegments() == null) {
+                // Don't keep the blocks of a previous download around
+                file.setLength(0);
+            } else if (size < 0 || file.length() > size) {
+                file.setLength(size < 0 ? offset : size);
+            }
+            if (size < 0) {
+                return true;
+            }
+
+            final long missing = size - file.length();
+            final long usable = mDestination.getUsableSpace();
+            if (missing > usable) {
+                Log.e(TAG, "Need " + missing + " more bytes, only " + usable + " available");
+                return false;
+            }
+            // The length of the file won't tell what was downloaded from now on
+            mState.setLength(offset);
+            mState.save();
+            try {
+                Os.posix_fallocate(file.getFD(), 0, size);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    Log.e(TAG, "Not enough space to allocate " + size + " bytes", e);
+                    return false;
+                }
+                // Not every filesystem supports it, the file will grow as it's written
+                Log.w(TAG, "Could not allocate " + size + " bytes", e);
+            }
+            return true;
+        }
+
+        /**
+         * Set up the chunk manifest of the file. When resuming, check the bytes that
+         * were already downloaded against it so that the download carries on from
+         * the last chunk known to be good rather than from a corrupted tail.
+         */
+        private void prepareChunks() throws IOException {
+            mChunks = mResume ? mState.getChunks() : null;
+            if (mChunks == null && mChunkManifestUrl != null) {
+                mChunks = ChunkManifest.fetch(mChunkManifestUrl);
+            }
+            if (mChunks == null) {
+                mChunks = ChunkManifest.createLocal();
+            } else if (mResume) {
+                final long length = mState.getLength();
+                final long valid = mChunks.validate(mDestination, length);
+                if (valid < length) {
+                    Log.w(TAG, "Resuming from " + valid + " instead of " + length);
+                    mState.setLength(valid);
+                }
+            }
+            mState.setChunks(mChunks);
+        }
+
+        /**
+         * Drop what was downloaded so far, the server has a new file at the url.
+         */
+        private void restart() throws IOException {
+            mResume = false;
+            mTotalBytesRead = 0;
+            mState.setSegments(null);
+            mState.setLength(0);
+            mChunks.validate(mDestination, 0);
+            mVerifier = createVerifier();
+        }
+
+        private void onComplete() {
+            mState.delete();
+            if (mVerifier != null && !mVerifier.verify()) {
+                mCallback.onError(DownloadCallback.ERROR_DIGEST_MISMATCH);
+            } else {
+                mCallback.onSuccess(mDestination);
+            }
+        }
+
+        private void downloadSegments(long length) throws IOException {
+            final long offset = mTotalBytesRead;
+            // Carry on with the segments of the last attempt, if it was segmented too
+            final long[][] layout = SegmentedDownload.resume(mState.getSegments(), offset,
+                    offset + length);
+            mState.setSegments(layout);
+            final int count = (int) Math.min(mSegments, length / MIN_SEGMENT_SIZE);
+            final List<URL> mirrors = new ArrayList<>();
+            mirrors.add(mClient.getURL());
+            if (mStripeDuplicateLinks) {
+                for (String mirror : mMirrors) {
+                    // URL.equals() would resolve the hosts, compare the strings instead
+                    if (mirrors.size() >= count || mirror.equals(mClient.getURL().toString())) {
+                        continue;
+                    }
+                    try {
+                        mirrors.add(new URL(mirror));
+                    } catch (MalformedURLException e) {
+                        Log.e(TAG, "Ignoring mirror " + mirror, e);
+                    }
+                }
+            }
+            Log.d(TAG, "Downloading " + length + " bytes in " + count + " segments from "
+                    + mirrors.size() + " mirrors");
+
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                 FileChannel channel = file.getChannel()) {
+                if (!allocate(file, offset, offset + length)) {
+                    mCallback.onError(DownloadCallback.ERROR_INSUFFICIENT_STORAGE);
+                    return;
+                }
+
+                // The first segment reuses the connection we already opened
+                SegmentedDownload download;
+                if (layout != null) {
+                    Log.d(TAG, "Resuming " + layout.length + " segments from " + offset);
+                    download = new SegmentedDownload(channel, layout, count, mirrors, mClient);
+                } else {
+                    download = new SegmentedDownload(channel, offset, length, count, mirrors,
+                            mClient);
+                }
+                download.start();
+
+                mTotalBytes = offset + length;
+                ProgressSampler sampler = new ProgressSampler(mProgressListener,
+                        () -> offset + download.getBytesRead(), mTotalBytes);
+                sampler.start();
+                // Reading back what the segments wrote mustn't delay the stall checks
+                ReadBackHasher hasher = new ReadBackHasher(mDestination, mVerifier, mChunks);
+                hasher.start();
+                boolean cancelled = false;
+                try {
+                    try {
+                        boolean done = false;
+                        while (!done && !cancelled) {
+                            try {
+                                done = download.await(PROGRESS_INTERVAL_MS);
+                                download.checkStalls();
+                            } catch (InterruptedException e) {
+                                cancelled = true;
+                            }
+                            mTotalBytesRead = offset + download.getBytesRead();
+                            final long contiguous = download.getContiguousEnd();
+                            mState.setSegments(download.getLayout());
+                            mState.setLength(contiguous);
+                            hasher.advance(contiguous);
+                        }
+                    } finally {
+                        sampler.stop();
+                        download.stop();
+                    }
+                    // Clear the interrupted status, it would close the channel otherwise
+                    cancelled |= interrupted();
+                    // Catching up is cheaper now than after resuming
+                    hasher.finish(download.getContiguousEnd());
+                } finally {
+                    hasher.abort();
+                }
+
+                if (!cancelled && download.isComplete()) {
+                    sampler.finish(mTotalBytes);
+                    onComplete();
+                    return;
+                }
+
+                // The segments past the contiguous bytes are kept in the layout
+                long contiguous = download.getContiguousEnd();
+                mState.setSegments(download.getLayout());
+                mState.setLength(contiguous);
+                mState.save();
+                Log.d(TAG, "Segmented download stopped, keeping " + contiguous + " bytes");
+                if (cancelled) {
+                    onCancelled();
+                } else {
+                    throw new IOException("Every segment of the download failed");
+                }
+            }
+        }
+
         @Override
         public void run() {
             try {
-                mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                downloadWithRetries();
+            } finally {
+                DownloadScheduler.getInstance().finished(this);
+                if (mRequeue) {
+                    requeue(this);
+                }
+            }
+        }
+
+        private void downloadWithRetries() {
+            boolean prepared = false;
+            int retries = 0;
+            for (int attempt = 0; ; attempt++) {
+                final long length = mState.getLength();
+                try {
+                    if (attempt > 0) {
+                        // Carry on from what was saved, the manifest and the digests
+                        // are still in sync with it
+                        mResume |= length > 0 || mState.getSegments() != null;
+                        mTotalBytesRead = 0;
+                        mMirrors.clear();
+                        mClient = openConnection(new URL(mUrl));
+                    }
+                    if (!prepared) {
+                        prepareChunks();
+                        mVerifier = createVerifier();
+                        prepared = true;
+                    }
+                    if (attempt == 0 && !mResume && downloadDelta()) {
+                        return;
+                    }
+                    download();
+                    return;
+                } catch (IOException e) {
+                    Log.e(TAG, "Error downloading file", e);
+                    mState.save();
+                    if (mFromPeer) {
+                        mUsePeers = false;
+                    }
+                    if (isInterrupted() || e instanceof ClosedByInterruptException) {
+                        onCancelled();
+                        return;
+                    }
+                    if (mState.getLength() > length) {
+                        retries = 0;
+                    }
+                    if (!RetryPolicy.isRetryable(e) || retries >= RetryPolicy.MAX_RETRIES) {
+                        mCallback.onFailure(false);
+                        return;
+                    }
+                    final long delay = RetryPolicy.getDelayMillis(retries++);
+                    Log.d(TAG, "Retrying from " + mState.getLength() + " in " + delay + " ms");
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        onCancelled();
+                        return;
+                    }
+                } finally {
+                    mClient.disconnect();
+                }
+            }
+        }
+
+        /**
+         * Follow the redirect of the url once for all the ranges a delta download
+         * fetches. The duplicate links it advertises come next, in case the target
+         * fails.
+         *
+         * @return where the file can be downloaded from, best first
+         */
+        private List<String> resolveUrls() throws IOException {
+            String location = null;
+            Map<String, List<String>> headerFields = null;
+            Prewarmer.Redirect redirect = Prewarmer.takeRedirect(mUrl);
+            if (redirect != null) {
+                location = redirect.mLocation;
+                headerFields = redirect.mHeaderFields;
+            } else {
+                HttpURLConnection connection = openConnection(new URL(mUrl));
+                try {
+                    connection.setInstanceFollowRedirects(false);
+                    // Like the ranges, but without a body
+                    connection.setRequestProperty("Range", "bytes=0-0");
+                    final int responseCode = connection.getResponseCode();
+                    if (isRedirectCode(responseCode)
+                            && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        location = connection.getHeaderField("Location");
+                        headerFields = connection.getHeaderFields();
+                    }
+                    ConnectionManager.getInstance().discard(connection);
+                } finally {
+                    connection.disconnect();
+                }
+            }
+
+            final List<String> urls = new ArrayList<>();
+            if (location == null) {
+                urls.add(mUrl);
+                return urls;
+            }
+            final URL target = new URL(new URL(mUrl), location);
+            urls.add(target.toString());
+            PriorityQueue<DuplicateLink> duplicates = mUseDuplicateLinks
+                    ? getDuplicateLinks(headerFields) : null;
+            while (duplicates != null && !duplicates.isEmpty()) {
+                String url = duplicates.poll().mUrl;
+                // Protocol changes are not allowed, like for the whole download
+                if (!urls.contains(url) && url.startsWith(target.getProtocol() + ":")) {
+                    urls.add(url);
+                }
+            }
+            Log.d(TAG, mUrl + " redirects to " + target + ", " + (urls.size() - 1)
+                    + " duplicate links");
+            return urls;
+        }
+
+        /**
+         * Build the file out of the blocks it shares with the delta seed, if the
+         * server published a block map of it. What's left after an error is resumed
+         * like any other download.
+         *
+         * @return false if the file has to be downloaded as a whole
+         */
+        private boolean downloadDelta() throws IOException {
+            if (mDeltaSeed == null || mBlockMapUrl == null || !mDeltaSeed.isFile()) {
+                return false;
+            }
+            BlockMap map = BlockMap.fetch(mBlockMapUrl);
+            if (map == null) {
+                return false;
+            }
+            final long length = map.getLength();
+            Log.d(TAG, "Downloading " + length + " bytes as a delta against " + mDeltaSeed);
+            DeltaDownload delta = new DeltaDownload(map, mDeltaSeed, resolveUrls());
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                 FileChannel channel = file.getChannel()) {
+                if (!allocate(file, 0, length)) {
+                    mCallback.onError(DownloadCallback.ERROR_INSUFFICIENT_STORAGE);
+                    return true;
+                }
+                mCallback.onResponse(HttpURLConnection.HTTP_OK, mUrl, new DeltaHeaders(length));
+
+                mTotalBytes = length;
+                ProgressSampler sampler = new ProgressSampler(mProgressListener,
+                        delta::getBytesDone, mTotalBytes);
+                sampler.start();
+                boolean cancelled = false;
+                IOException error = null;
+                try {
+                    delta.run(channel);
+                } catch (ClosedByInterruptException e) {
+                    cancelled = true;
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    sampler.stop();
+                }
+                // Clear the interrupted status, it would close the channels otherwise
+                cancelled |= interrupted();
+
+                if (!cancelled && error == null) {
+                    sampler.finish(mTotalBytes);
+                    if (mVerifier != null) {
+                        mVerifier.catchUp(mDestination, mTotalBytes);
+                    }
+                    onComplete();
+                    return true;
+                }
+
+                // Only the contiguous blocks can be resumed, the rest will be overwritten
+                final long contiguous = delta.getContiguousEnd();
+                if (mVerifier != null) {
+                    mVerifier.catchUp(mDestination, contiguous);
+                }
+                mChunks.update(mDestination, contiguous);
+                mState.setLength(contiguous);
+                mState.save();
+                Log.d(TAG, "Delta download stopped, keeping " + contiguous + " bytes");
+                if (cancelled) {
+                    onCancelled();
+                    return true;
+                }
+                throw error;
+            }
+        }
+
+        /**
+         * Try the peers sharing the file on the local network before the server,
+         * sending them the same range.
+         *
+         * @return the response code of the peer that has the file, or -1 if none
+         * has it
+         */
+        private int connectToPeer() {
+            mFromPeer = false;
+            if (!mUsePeers) {
+                return -1;
+            }
+            final String range = mClient.getRequestProperty("Range");
+            for (String peerUrl : mPeerUrls) {
+                HttpURLConnection peer = null;
+                try {
+                    peer = ConnectionManager.getInstance().open(peerUrl);
+                    peer.setConnectTimeout(PEER_TIMEOUT_MS);
+                    peer.setReadTimeout(PEER_TIMEOUT_MS);
+                    if (range != null) {
+                        peer.setRequestProperty("Range", range);
+                    }
+                    final int responseCode = peer.getResponseCode();
+                    if ((responseCode == HttpURLConnection.HTTP_OK && range == null)
+                            || isPartialContentCode(responseCode)) {
+                        Log.d(TAG, "Downloading from peer " + peerUrl);
+                        mClient.disconnect();
+                        mClient = peer;
+                        mFromPeer = true;
+                        return responseCode;
+                    }
+                    ConnectionManager.getInstance().discard(peer);
+                } catch (IOException e) {
+                    Log.w(TAG, "Peer " + peerUrl + " is not reachable", e);
+                }
+                if (peer != null) {
+                    peer.disconnect();
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return false if what's known about the server says the file can't be
+         * downloaded in segments
+         */
+        private boolean canSegment(HostCapabilities.Entry capabilities) {
+            if (capabilities == null) {
+                return true;
+            }
+            if (Boolean.FALSE.equals(capabilities.acceptsRanges())) {
+                Log.d(TAG, mHost + " doesn't serve ranges, downloading as a single stream");
+                return false;
+            }
+            if (mResume && mState.getSegments() != null) {
+                // Segments already downloaded would be fetched again
+                return true;
+            }
+            if ("h2".equals(capabilities.getProtocol()) && !mStripeDuplicateLinks) {
+                // The segments would share a single connection
+                Log.d(TAG, mHost + " speaks h2, downloading as a single stream");
+                return false;
+            }
+            final long rttMillis = capabilities.getRttMillis();
+            if (rttMillis >= 0 && rttMillis <= MAX_SINGLE_STREAM_RTT_MS) {
+                Log.d(TAG, mHost + " answers in " + rttMillis
+                        + " ms, downloading as a single stream");
+                return false;
+            }
+            return true;
+        }
+
+        private void download() throws IOException {
+            final String etag = mState.getEtag();
+            // Weak ETags can't tell whether the bytes are the same
+            final boolean ifRange = mResume && etag != null && !etag.startsWith("W/");
+            if (mResume) {
+                mState.save();
+                mClient.setRequestProperty("Range", "bytes=" + mState.getLength() + "-");
+                if (ifRange) {
+                    // Get the whole file instead of the rest of another one
+                    mClient.setRequestProperty("If-Range", etag);
+                }
+            }
+
+            mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+            final HostCapabilities.Entry capabilities =
+                    HostCapabilities.getInstance().get(mHost);
+            // Resuming a segmented download keeps it segmented
+            final boolean segmented = mSegments > 1 && canSegment(capabilities)
+                    && (!mResume || mState.getSegments() != null);
+            if (mCompressed && !mResume && !segmented) {
+                mClient.setRequestProperty("Accept-Encoding",
+                        ContentDecoder.getAcceptedEncodings());
+            }
+            if (segmented && !mResume) {
+                // Request the whole file as a range, so that the reply tells us
+                // whether the server can serve the other segments too
+                mClient.setRequestProperty("Range", "bytes=0-");
+            }
+            final long requestMillis = SystemClock.elapsedRealtime();
+            int responseCode = connectToPeer();
+            Prewarmer.Redirect redirect = responseCode < 0 && mUseDuplicateLinks
+                    ? Prewarmer.takeRedirect(mClient.getURL().toString()) : null;
+            if (redirect != null) {
+                Log.d(TAG, "Skipping the redirect, prewarmed to " + redirect.mLocation);
+                handleDuplicateLinks(redirect.mLocation, redirect.mHeaderFields, false);
+                responseCode = mClient.getResponseCode();
+            } else if (responseCode < 0) {
                 mClient.connect();
-                int responseCode = mClient.getResponseCode();
+                responseCode = mClient.getResponseCode();
 
-                if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
-                    handleDuplicateLinks();
+                if (mUseDuplicateLinks && isRedirectCode(responseCode)
+                        && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    handleDuplicateLinks(mClient.getHeaderField("Location"),
+                            mClient.getHeaderFields(), true);
                     responseCode = mClient.getResponseCode();
                 }
+            }
+
+            // A whole file is sent back to an If-Range of a changed file too
+            final boolean rangeOnly = segmented || (mResume && !ifRange);
+            if (!mFromPeer && (rangeOnly || responseCode == HttpURLConnection.HTTP_PARTIAL)) {
+                HostCapabilities.getInstance().onResponse(mHost, mClient,
+                        SystemClock.elapsedRealtime() - requestMillis);
+            }
+
+            mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(TAG, "The copy we have is still up to date");
+                ConnectionManager.getInstance().discard(mClient);
+                mCallback.onNotModified();
+                return;
+            }
+
+            if (mResume && ifRange && !mFromPeer
+                    && responseCode == HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "The file changed on the server, downloading it again");
+                restart();
+            }
+            if (mResume && isPartialContentCode(responseCode)) {
+                mTotalBytesRead = mState.getLength();
+                Log.d(TAG, "The server fulfilled the partial content request");
+            } else if (mResume || isSuccessCode(responseCode)) {
+                ConnectionManager.getInstance().discard(mClient);
+                throw new HttpStatusException(responseCode);
+            }
+
+            if (!mResume) {
+                // Peers don't know the ETag of the server
+                mState.setEtag(mFromPeer ? null : mClient.getHeaderField("ETag"));
+            }
 
-                mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
+            final String encoding = mClient.getContentEncoding();
+            final boolean encoded = ContentDecoder.isEncoded(encoding);
+            // The length of a compressed reply says nothing about the file
+            long contentLength = encoded ? -1 : mClient.getContentLengthLong();
+            if (mSegments > 1 && isPartialContentCode(responseCode)
+                    && contentLength >= MIN_SEGMENT_SIZE * 2) {
+                downloadSegments(contentLength);
+                return;
+            }
+            // Written as a single stream from now on
+            mState.setSegments(null);
 
-                if (mResume && isPartialContentCode(responseCode)) {
-                    mTotalBytesRead = mDestination.length();
-                    Log.d(TAG, "The server fulfilled the partial content request");
-                } else if (mResume || isSuccessCode(responseCode)) {
-                    Log.e(TAG, "The server replied with code " + responseCode);
-                    mCallback.onFailure(isInterrupted());
+            final BufferPool pool = BufferPool.getInstance();
+            final RateLimiter limiter = RateLimiter.getInstance();
+            // Start with the buffer the last download from the server ended with
+            ByteBuffer buffer = pool.acquire(BufferPool.sizeFor(
+                    capabilities != null ? capabilities.getSpeed() : -1));
+            ProgressSampler sampler = null;
+            try (
+                    CountingInputStream wireStream =
+                            new CountingInputStream(mClient.getInputStream());
+                    InputStream inputStream = ContentDecoder.decode(wireStream, encoding);
+                    RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                    FileChannel channel = file.getChannel()
+            ) {
+                mTotalBytes = contentLength + mTotalBytesRead;
+                if (!allocate(file, mTotalBytesRead, contentLength < 0 ? -1 : mTotalBytes)) {
+                    mCallback.onError(DownloadCallback.ERROR_INSUFFICIENT_STORAGE);
                     return;
                 }
-
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed();
-                        calculateEta();
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
-                                    false);
-                        }
+                channel.position(mTotalBytesRead);
+                if (mVerifier != null) {
+                    mVerifier.catchUp(mDestination, mTotalBytesRead);
+                }
+                sampler = new ProgressSampler(mProgressListener, () -> mTotalBytesRead,
+                        mTotalBytes);
+                final HttpURLConnection connection = mClient;
+                sampler.setStallListener(() -> {
+                    Log.w(TAG, "Download stalled at " + mTotalBytesRead + ", reconnecting");
+                    // Unblocks the pending read, the download is then retried
+                    connection.disconnect();
+                });
+                sampler.start();
+                ReadableByteChannel source = Channels.newChannel(inputStream);
+                buffer.limit(Math.min(buffer.capacity(), limiter.getMaxRead()));
+                int count;
+                while (!isInterrupted() && (count = BufferPool.fill(source, buffer)) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
                     }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
+                    if (mVerifier != null) {
+                        buffer.rewind();
+                        mVerifier.update(buffer);
                     }
+                    mTotalBytesRead += count;
+                    mChunks.update(mDestination, mTotalBytesRead);
+                    mState.setLength(mTotalBytesRead);
+                    buffer = pool.resize(buffer, BufferPool.sizeFor(sampler.getSpeed()));
+                    // Leaves the interrupted status set if cancelled while waiting
+                    limiter.acquire(count);
+                    buffer.limit(Math.min(buffer.capacity(), limiter.getMaxRead()));
+                }
+                if (!isInterrupted() && contentLength >= 0 && mTotalBytesRead < mTotalBytes) {
+                    throw new EOFException("Stream ended at " + mTotalBytesRead
+                            + ", expected " + mTotalBytes);
+                }
+                sampler.finish(mTotalBytesRead);
+                // Small compressed files never get up to speed
+                if (!mFromPeer && !mCompressed) {
+                    HostCapabilities.getInstance().onSpeed(mHost, sampler.getSpeed());
+                }
 
-                    outputStream.flush();
-
-                    if (isInterrupted()) {
-                        mCallback.onFailure(true);
-                    } else {
-                        mCallback.onSuccess(mDestination);
+                if (isInterrupted()) {
+                    mState.save();
+                    onCancelled();
+                } else {
+                    // Don't keep what was allocated but never received
+                    channel.truncate(mTotalBytesRead);
+                    if (encoded) {
+                        Log.d(TAG, "Received " + wireStream.getCount() + " bytes of "
+                                + encoding + " for " + mTotalBytesRead + " bytes");
                     }
+                    onComplete();
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Error downloading file", e);
-                mCallback.onFailure(isInterrupted());
             } finally {
-                mClient.disconnect();
+                if (sampler != null) {
+                    sampler.stop();
+                }
+                pool.release(buffer);
             }
         }
     }
+
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes a set of mirrors at the same time with a small range request and ranks
+ * them by how fast they actually deliver bytes, rather than by their advertised
+ * priority.
+ */
+final class MirrorRace {
+
+    private static final String TAG = "MirrorRace";
+
+    private static final int PROBE_SIZE = 256 * 1024;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    static final class Result {
+        final String mUrl;
+        final long mTimeToFirstByte;
+        final long mSpeed;
+
+        private Result(String url, long timeToFirstByte, long speed) {
+            mUrl = url;
+            mTimeToFirstByte = timeToFirstByte;
+            mSpeed = speed;
+        }
+    }
+
+    private MirrorRace() {
+    }
+
+    /**
+     * Probe the given mirrors concurrently.
+     *
+     * @param urls the mirrors to probe
+     * @return the mirrors that answered, fastest first
+     */
+    static List<Result> run(List<String> urls) {
+        List<Result> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch remaining = new CountDownLatch(urls.size());
+        for (String url : urls) {
+            new Thread(() -> {
+                try {
+                    Result result = probe(url);
+                    Log.d(TAG, url + ": first byte after " + result.mTimeToFirstByte
+                            + "ms, " + result.mSpeed + " B/s");
+                    results.add(result);
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not probe " + url, e);
+                } finally {
+                    remaining.countDown();
+                }
+            }).start();
+        }
+
+        try {
+            remaining.await(PROBE_TIMEOUT_MS * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Result> ranked;
+        synchronized (results) {
+            ranked = new ArrayList<>(results);
+        }
+        ranked.sort(Comparator.comparingLong((Result r) -> r.mSpeed).reversed());
+        return ranked;
+    }
+
+    private static Result probe(String url) throws IOException {
+        HttpURLConnection connection = ConnectionManager.getInstance().open(url);
+        try {
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+            final long start = SystemClock.elapsedRealtime();
+            int responseCode = connection.getResponseCode();
+            if (responseCode / 100 != 2) {
+                ConnectionManager.getInstance().discard(connection);
+                throw new IOException("Server replied with " + responseCode);
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                byte[] b = new byte[8192];
+                int read = inputStream.read(b);
+                final long firstByte = SystemClock.elapsedRealtime() - start;
+                long total = 0;
+                while (read > 0) {
+                    total += read;
+                    if (total >= PROBE_SIZE) {
+                        break;
+                    }
+                    read = inputStream.read(b, 0, (int) Math.min(b.length, PROBE_SIZE - total));
+                }
+                // Count the time to the first byte too, a mirror that takes long
+                // to answer is as bad as a slow one for a fresh connection
+                final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+                return new Result(url, firstByte, total * 1000 / elapsed);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
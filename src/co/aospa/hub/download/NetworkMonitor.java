@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+/**
+ * Follows the default network of the device, so that downloads can be paused as
+ * soon as it goes away or becomes metered rather than when they fail, and be
+ * resumed once a suitable network is back.
+ */
+public final class NetworkMonitor extends ConnectivityManager.NetworkCallback {
+
+    private static final String TAG = "NetworkMonitor";
+
+    public interface Listener {
+        /**
+         * Called from a background thread when the default network changes.
+         *
+         * @param available whether there's a network with working internet access
+         * @param metered whether that network is metered
+         */
+        void onNetworkChanged(boolean available, boolean metered);
+    }
+
+    private final ConnectivityManager mConnectivityManager;
+    private final Listener mListener;
+    private boolean mRegistered;
+    private boolean mAvailable;
+    private boolean mMetered;
+
+    public NetworkMonitor(Context context, Listener listener) {
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        mListener = listener;
+    }
+
+    public synchronized void start() {
+        if (!mRegistered) {
+            // The current network is reported right away
+            mConnectivityManager.registerDefaultNetworkCallback(this);
+            mRegistered = true;
+        }
+    }
+
+    public synchronized void stop() {
+        if (mRegistered) {
+            mConnectivityManager.unregisterNetworkCallback(this);
+            mRegistered = false;
+        }
+    }
+
+    @Override
+    public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+        // Behind a captive portal until validated
+        update(capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                        && capabilities.hasCapability(
+                                NetworkCapabilities.NET_CAPABILITY_VALIDATED),
+                !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+    }
+
+    @Override
+    public void onLost(Network network) {
+        update(false, mMetered);
+    }
+
+    private void update(boolean available, boolean metered) {
+        synchronized (this) {
+            if (available == mAvailable && metered == mMetered) {
+                return;
+            }
+            mAvailable = available;
+            mMetered = metered;
+        }
+        Log.d(TAG, "Network changed, available=" + available + " metered=" + metered);
+        mListener.onNetworkChanged(available, metered);
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+
+/**
+ * Shares the verified update packages with the other devices of the local
+ * network, and finds the devices sharing theirs, announcing them with DNS-SD.
+ * What's downloaded from a peer is checked like anything downloaded from the
+ * server, with the digests of the update and the signature of the package.
+ * Packages are only served on the Wi-Fi or Ethernet network of the device, and
+ * not while there's none.
+ */
+public final class PeerCache {
+
+    private static final String TAG = "PeerCache";
+    private static final String SERVER_TAG = "PeerCacheServer";
+
+    private static final String SERVICE_TYPE = "_aospahub._tcp.";
+    private static final String SERVICE_NAME = "ParanoidHub";
+    // Long enough to find the peers of a network, discovery isn't cheap
+    private static final long DISCOVERY_DURATION_MS = 2 * 60 * 1000;
+
+    private static PeerCache sInstance;
+
+    private final NsdManager mNsdManager;
+    private final ConnectivityManager mConnectivityManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PeerCacheServer mServer = new PeerCacheServer(new PeerCacheServer.Logger() {
+        @Override
+        public void debug(String message) {
+            Log.d(SERVER_TAG, message);
+        }
+
+        @Override
+        public void error(String message, Throwable e) {
+            Log.e(SERVER_TAG, message, e);
+        }
+    });
+    // Base urls of the peers, by service name
+    private final Map<String, String> mPeers = new LinkedHashMap<>();
+    // The platform only resolves one service at a time
+    private final Queue<NsdServiceInfo> mPendingResolves = new ArrayDeque<>();
+    private boolean mResolving;
+    private NsdManager.RegistrationListener mRegistration;
+    private String mServiceName;
+    private NsdManager.DiscoveryListener mDiscovery;
+    // The IPv4 address of each local network, by network
+    private final Map<Network, Inet4Address> mLocalAddresses = new LinkedHashMap<>();
+    private boolean mMonitoring;
+    // The address the server listens on and is announced with, if any
+    private Inet4Address mAddress;
+
+    private final Runnable mStopDiscovery = this::stopDiscovery;
+
+    private final ConnectivityManager.NetworkCallback mLocalNetworks =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onLinkPropertiesChanged(Network network,
+                        LinkProperties linkProperties) {
+                    synchronized (PeerCache.this) {
+                        Inet4Address address = getInet4Address(linkProperties);
+                        if (address != null) {
+                            mLocalAddresses.put(network, address);
+                        } else {
+                            mLocalAddresses.remove(network);
+                        }
+                        updateAnnouncement();
+                    }
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    synchronized (PeerCache.this) {
+                        if (mLocalAddresses.remove(network) != null) {
+                            updateAnnouncement();
+                        }
+                    }
+                }
+            };
+
+    private PeerCache(Context context) {
+        mNsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+    }
+
+    public static synchronized PeerCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PeerCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Serve the given verified package to the peers, announcing this device on
+     * the local network if it wasn't sharing anything yet.
+     */
+    public synchronized void share(File file) {
+        mServer.share(file);
+        if (!mMonitoring) {
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                    .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
+                    .build();
+            // The networks already there are reported right away
+            mConnectivityManager.registerNetworkCallback(request, mLocalNetworks);
+            mMonitoring = true;
+        }
+        updateAnnouncement();
+    }
+
+    /**
+     * Stop serving the given package, and stop announcing this device once it
+     * doesn't share anything anymore.
+     */
+    public synchronized void unshare(File file) {
+        mServer.unshare(file);
+        if (mServer.isSharing()) {
+            return;
+        }
+        if (mMonitoring) {
+            mConnectivityManager.unregisterNetworkCallback(mLocalNetworks);
+            mMonitoring = false;
+            mLocalAddresses.clear();
+        }
+        updateAnnouncement();
+    }
+
+    /**
+     * Listen and announce this device on a local network while there's one and
+     * something to share, moving over when the address changes.
+     */
+    private void updateAnnouncement() {
+        Inet4Address address = mServer.isSharing() && !mLocalAddresses.isEmpty()
+                ? mLocalAddresses.values().iterator().next() : null;
+        if (Objects.equals(address, mAddress)) {
+            return;
+        }
+        withdraw();
+        if (address != null) {
+            announce(address);
+        }
+    }
+
+    private void announce(Inet4Address address) {
+        final int port;
+        try {
+            port = mServer.start(address);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start sharing on " + address.getHostAddress(), e);
+            return;
+        }
+        mAddress = address;
+        NsdServiceInfo info = new NsdServiceInfo();
+        info.setServiceName(SERVICE_NAME);
+        info.setServiceType(SERVICE_TYPE);
+        info.setPort(port);
+        mRegistration = new NsdManager.RegistrationListener() {
+            @Override
+            public void onServiceRegistered(NsdServiceInfo serviceInfo) {
+                synchronized (PeerCache.this) {
+                    if (mRegistration != this) {
+                        // Withdrawn since
+                        return;
+                    }
+                    // The name is made unique on the network if needed
+                    mServiceName = serviceInfo.getServiceName();
+                }
+                Log.d(TAG, "Sharing as " + serviceInfo.getServiceName() + " on port " + port);
+            }
+
+            @Override
+            public void onRegistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
+                Log.e(TAG, "Could not announce the peer cache: " + errorCode);
+            }
+
+            @Override
+            public void onServiceUnregistered(NsdServiceInfo serviceInfo) {
+            }
+
+            @Override
+            public void onUnregistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
+                Log.e(TAG, "Could not stop announcing the peer cache: " + errorCode);
+            }
+        };
+        mNsdManager.registerService(info, NsdManager.PROTOCOL_DNS_SD, mRegistration);
+    }
+
+    /**
+     * Stop listening and announcing this device, the shared packages are kept
+     * for when it's announced again.
+     */
+    private void withdraw() {
+        if (mAddress == null) {
+            return;
+        }
+        try {
+            mNsdManager.unregisterService(mRegistration);
+        } catch (IllegalArgumentException e) {
+            // It was never registered
+        }
+        Log.d(TAG, "Stopped sharing on " + mAddress.getHostAddress());
+        mRegistration = null;
+        mServiceName = null;
+        mAddress = null;
+        mServer.stop();
+    }
+
+    /**
+     * Look for peers for a while, the ones already found are kept.
+     */
+    public synchronized void discover() {
+        mHandler.removeCallbacks(mStopDiscovery);
+        mHandler.postDelayed(mStopDiscovery, DISCOVERY_DURATION_MS);
+        if (mDiscovery != null) {
+            return;
+        }
+        mDiscovery = new NsdManager.DiscoveryListener() {
+            @Override
+            public void onDiscoveryStarted(String serviceType) {
+                Log.d(TAG, "Looking for peers");
+            }
+
+            @Override
+            public void onDiscoveryStopped(String serviceType) {
+                Log.d(TAG, "Stopped looking for peers");
+            }
+
+            @Override
+            public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+                Log.e(TAG, "Could not look for peers: " + errorCode);
+                synchronized (PeerCache.this) {
+                    mDiscovery = null;
+                }
+            }
+
+            @Override
+            public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+                Log.e(TAG, "Could not stop looking for peers: " + errorCode);
+            }
+
+            @Override
+            public void onServiceFound(NsdServiceInfo serviceInfo) {
+                synchronized (PeerCache.this) {
+                    if (serviceInfo.getServiceName().equals(mServiceName)) {
+                        return;
+                    }
+                    mPendingResolves.add(serviceInfo);
+                    resolveNext();
+                }
+            }
+
+            @Override
+            public void onServiceLost(NsdServiceInfo serviceInfo) {
+                synchronized (PeerCache.this) {
+                    if (mPeers.remove(serviceInfo.getServiceName()) != null) {
+                        Log.d(TAG, "Lost peer " + serviceInfo.getServiceName());
+                    }
+                }
+            }
+        };
+        mNsdManager.discoverServices(SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, mDiscovery);
+    }
+
+    /**
+     * @return the urls the peers found so far would serve the given file at, if
+     * they have it
+     */
+    public synchronized List<String> getPeerUrls(String fileName) {
+        List<String> urls = new ArrayList<>(mPeers.size());
+        for (String peer : mPeers.values()) {
+            urls.add(peer + "/" + fileName);
+        }
+        return urls;
+    }
+
+    private synchronized void stopDiscovery() {
+        if (mDiscovery == null) {
+            return;
+        }
+        try {
+            mNsdManager.stopServiceDiscovery(mDiscovery);
+        } catch (IllegalArgumentException e) {
+            // It never started
+        }
+        mDiscovery = null;
+        mPendingResolves.clear();
+    }
+
+    private static Inet4Address getInet4Address(LinkProperties linkProperties) {
+        for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+            if (linkAddress.getAddress() instanceof Inet4Address) {
+                return (Inet4Address) linkAddress.getAddress();
+            }
+        }
+        return null;
+    }
+
+    private void resolveNext() {
+        if (mResolving || mPendingResolves.isEmpty()) {
+            return;
+        }
+        mResolving = true;
+        mNsdManager.resolveService(mPendingResolves.poll(), new NsdManager.ResolveListener() {
+            @Override
+            public void onServiceResolved(NsdServiceInfo serviceInfo) {
+                synchronized (PeerCache.this) {
+                    // Scoped IPv6 addresses don't make valid urls
+                    if (serviceInfo.getHost() instanceof Inet4Address) {
+                        String url = "http://" + serviceInfo.getHost().getHostAddress() + ":"
+                                + serviceInfo.getPort();
+                        Log.d(TAG, "Found peer " + serviceInfo.getServiceName() + " at " + url);
+                        mPeers.put(serviceInfo.getServiceName(), url);
+                    }
+                    mResolving = false;
+                    resolveNext();
+                }
+            }
+
+            @Override
+            public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+                Log.e(TAG, "Could not resolve " + serviceInfo.getServiceName() + ": "
+                        + errorCode);
+                synchronized (PeerCache.this) {
+                    mResolving = false;
+                    resolveNext();
+                }
+            }
+        });
+    }
+}
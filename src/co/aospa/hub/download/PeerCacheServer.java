@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal HTTP server sharing the verified update packages of this device with
+ * the others of the network. Files are served by name only, with a single range
+ * per request, which is all the downloads of the hub ask for.
+ *
+ * It only depends on the JDK, so that it can be run outside of the device, see
+ * tests/peercache.
+ */
+final class PeerCacheServer {
+
+    private static final String TAG = "PeerCacheServer";
+
+    /**
+     * Where the server reports what it does, the log of the device on the device.
+     */
+    interface Logger {
+        void debug(String message);
+
+        void error(String message, Throwable e);
+    }
+
+    private final Logger mLogger;
+
+    private static final int MAX_CLIENTS = 4;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int TIMEOUT_MS = 30 * 1000;
+
+    private static final Pattern REQUEST_LINE =
+            Pattern.compile("(GET|HEAD) /([^ /?]+) HTTP/1\\.[01]");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final Map<String, File> mFiles = new ConcurrentHashMap<>();
+    private ServerSocket mSocket;
+    private ThreadPoolExecutor mExecutor;
+
+    PeerCacheServer(Logger logger) {
+        mLogger = logger;
+    }
+
+    /**
+     * Share the given file, under its name.
+     */
+    void share(File file) {
+        mFiles.put(file.getName(), file);
+    }
+
+    void unshare(File file) {
+        mFiles.remove(file.getName(), file);
+    }
+
+    boolean isSharing() {
+        return !mFiles.isEmpty();
+    }
+
+    /**
+     * Start listening on the given address of the device, and on that one only,
+     * if not done yet.
+     *
+     * @return the port the server listens on
+     */
+    synchronized int start(InetAddress address) throws IOException {
+        if (mSocket != null) {
+            if (address.equals(mSocket.getInetAddress())) {
+                return mSocket.getLocalPort();
+            }
+            stop();
+        }
+        mSocket = new ServerSocket(0, 0, address);
+        mExecutor = new ThreadPoolExecutor(0, MAX_CLIENTS, TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>());
+        final ServerSocket socket = mSocket;
+        final ThreadPoolExecutor executor = mExecutor;
+        new Thread(() -> accept(socket, executor), TAG).start();
+        mLogger.debug("Listening on " + address.getHostAddress() + ":" + socket.getLocalPort());
+        return socket.getLocalPort();
+    }
+
+    synchronized void stop() {
+        if (mSocket == null) {
+            return;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            mLogger.error("Could not close the server socket", e);
+        }
+        mExecutor.shutdownNow();
+        mSocket = null;
+        mExecutor = null;
+    }
+
+    private void accept(ServerSocket server, ThreadPoolExecutor executor) {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    mLogger.error("Could not accept a connection", e);
+                }
+                return;
+            }
+            try {
+                executor.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                // The client gets the file from somewhere else
+                try (Socket busy = socket) {
+                    writeHeaders(busy.getOutputStream(), "503 Service Unavailable", 0, null);
+                } catch (IOException ioe) {
+                    // Nothing else to do
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket client = socket) {
+            client.setSoTimeout(TIMEOUT_MS);
+            InputStream inputStream = new BufferedInputStream(client.getInputStream());
+            OutputStream outputStream = client.getOutputStream();
+            Matcher request = REQUEST_LINE.matcher(readLine(inputStream));
+            String range = null;
+            for (String line; !(line = readLine(inputStream)).isEmpty(); ) {
+                final int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            if (!request.matches()) {
+                writeHeaders(outputStream, "400 Bad Request", 0, null);
+                return;
+            }
+            final File file = mFiles.get(request.group(2));
+            if (file == null || !file.isFile()) {
+                writeHeaders(outputStream, "404 Not Found", 0, null);
+                return;
+            }
+            try (RandomAccessFile input = new RandomAccessFile(file, "r");
+                 FileChannel channel = input.getChannel()) {
+                final long length = channel.size();
+                long start = 0;
+                long end = length;
+                String status = "200 OK";
+                String contentRange = null;
+                if (range != null) {
+                    Matcher matcher = RANGE.matcher(range);
+                    if (matcher.matches() && !(matcher.group(1) + matcher.group(2)).isEmpty()) {
+                        if (matcher.group(1).isEmpty()) {
+                            start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+                        } else {
+                            start = Long.parseLong(matcher.group(1));
+                            if (!matcher.group(2).isEmpty()) {
+                                end = Math.min(length, Long.parseLong(matcher.group(2)) + 1);
+                            }
+                        }
+                        if (start >= end) {
+                            writeHeaders(outputStream, "416 Range Not Satisfiable", 0,
+                                    "bytes */" + length);
+                            return;
+                        }
+                        status = "206 Partial Content";
+                        contentRange = "bytes " + start + "-" + (end - 1) + "/" + length;
+                    }
+                }
+                writeHeaders(outputStream, status, end - start, contentRange);
+                if (request.group(1).equals("GET")) {
+                    WritableByteChannel target = Channels.newChannel(outputStream);
+                    long position = start;
+                    while (position < end) {
+                        position += channel.transferTo(position, end - position, target);
+                    }
+                    outputStream.flush();
+                }
+                mLogger.debug("Served " + (end - start) + " bytes of " + file.getName() + " to "
+                        + client.getInetAddress().getHostAddress());
+            }
+        } catch (SocketException e) {
+            // The client went away, it does when it has enough
+        } catch (IOException | NumberFormatException e) {
+            mLogger.error("Could not serve a request", e);
+        }
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) >= 0 && b != '\n') {
+            if (line.size() >= MAX_HEADER_SIZE) {
+                throw new IOException("Header line too long");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeHeaders(OutputStream outputStream, String status, long length,
+            String contentRange) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        outputStream.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.flush();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gets a download ready before it's started: the redirect of its url is followed
+ * and kept, the hosts of its mirrors are resolved, what the server can do is
+ * recorded and a connection to where it redirects is left in the pool. Starting
+ * the download then doesn't wait on DNS, TCP, TLS and the redirect anymore.
+ */
+final class Prewarmer {
+
+    private static final String TAG = "Prewarmer";
+
+    // The pool keeps idle connections for as long, and redirects may expire
+    private static final long MAX_AGE_MS = 5 * 60 * 1000;
+    private static final int TIMEOUT_MS = 5000;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, Redirect> sRedirects = new HashMap<>();
+
+    static final class Redirect {
+        final String mLocation;
+        final Map<String, List<String>> mHeaderFields;
+        final long mMillis;
+
+        private Redirect(String location, Map<String, List<String>> headerFields) {
+            mLocation = location;
+            mHeaderFields = headerFields;
+            mMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private Prewarmer() {
+    }
+
+    /**
+     * Get the download of the given url ready in the background.
+     */
+    static void prewarm(String url) {
+        sExecutor.execute(() -> {
+            try {
+                run(url);
+            } catch (IOException e) {
+                Log.d(TAG, "Could not prewarm " + url, e);
+            }
+        });
+    }
+
+    /**
+     * @return the redirect the given url answered recently, or null if it wasn't
+     * prewarmed. It can only be used once.
+     */
+    static Redirect takeRedirect(String url) {
+        synchronized (sRedirects) {
+            Redirect redirect = sRedirects.remove(url);
+            if (redirect == null || SystemClock.elapsedRealtime() - redirect.mMillis > MAX_AGE_MS) {
+                return null;
+            }
+            return redirect;
+        }
+    }
+
+    private static void run(String url) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final String host = new URL(url).getHost();
+        HttpURLConnection connection = open(url);
+        final int responseCode;
+        final String location;
+        final Map<String, List<String>> headerFields;
+        try {
+            connection.setInstanceFollowRedirects(false);
+            responseCode = connection.getResponseCode();
+            location = connection.getHeaderField("Location");
+            headerFields = copy(connection.getHeaderFields());
+            if (responseCode / 100 != 3) {
+                HostCapabilities.getInstance().onResponse(host, connection,
+                        SystemClock.elapsedRealtime() - start);
+            }
+            ConnectionManager.getInstance().discard(connection);
+        } finally {
+            connection.disconnect();
+        }
+        if (responseCode / 100 != 3 || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                || location == null) {
+            Log.d(TAG, url + " doesn't redirect, connection ready");
+            return;
+        }
+        final String target = new URL(new URL(url), location).toString();
+        synchronized (sRedirects) {
+            sRedirects.put(url, new Redirect(target, headerFields));
+        }
+
+        // The download goes there first, the mirrors only if it fails or races.
+        // They're the ones the download would pick from the same links.
+        final String protocol = new URL(url).getProtocol();
+        List<String> mirrors = new ArrayList<>();
+        PriorityQueue<HttpURLConnectionClient.DuplicateLink> duplicates =
+                HttpURLConnectionClient.getDuplicateLinks(headerFields);
+        while (duplicates != null && !duplicates.isEmpty()) {
+            String mirror = duplicates.poll().mUrl;
+            if (!mirrors.contains(mirror) && mirror.startsWith(protocol + ":")) {
+                mirrors.add(mirror);
+            }
+        }
+        for (String mirror : mirrors) {
+            try {
+                InetAddress.getAllByName(new URL(mirror).getHost());
+            } catch (IOException e) {
+                Log.d(TAG, "Could not resolve " + mirror, e);
+            }
+        }
+        connection = open(target);
+        try {
+            final long requestMillis = SystemClock.elapsedRealtime();
+            connection.getResponseCode();
+            // What the download will get once redirected there
+            HostCapabilities.getInstance().onResponse(host, connection,
+                    SystemClock.elapsedRealtime() - requestMillis);
+            // Gives the connection back to the pool
+            ConnectionManager.getInstance().discard(connection);
+        } finally {
+            connection.disconnect();
+        }
+        Log.d(TAG, "Prewarmed " + url + " in " + (SystemClock.elapsedRealtime() - start)
+                + " ms, redirects to " + target + ", " + mirrors.size() + " mirrors");
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = ConnectionManager.getInstance().open(url);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        // Like the downloads, but without their body
+        connection.setRequestProperty("Range", "bytes=0-0");
+        return connection;
+    }
+
+    private static Map<String, List<String>> copy(Map<String, List<String>> headerFields) {
+        Map<String, List<String>> copy = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : headerFields.entrySet()) {
+            if (entry.getKey() != null) {
+                copy.put(entry.getKey(), Collections.unmodifiableList(
+                        new ArrayList<>(entry.getValue())));
+            }
+        }
+        return copy;
+    }
+}
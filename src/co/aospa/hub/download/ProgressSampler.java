@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Publishes the progress of a download on a fixed cadence, so that the loops
+ * moving the bytes only have to keep a counter up to date. The speed is smoothed
+ * across samples, and also serves to size the buffers of the download and to
+ * tell when it stalled.
+ */
+final class ProgressSampler {
+
+    private static final long SAMPLE_INTERVAL_MS = 500;
+
+    // A single thread samples every download
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ProgressSampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final DownloadClient.ProgressListener mListener;
+    private final LongSupplier mBytesRead;
+    private final long mTotalBytes;
+
+    private Runnable mStallListener;
+    private StallDetector mStallDetector;
+    private ScheduledFuture<?> mFuture;
+    private boolean mStopped;
+    private long mLastMillis;
+    private long mLastBytes;
+    private volatile long mSpeed = -1;
+    private long mEta = -1;
+
+    /**
+     * @param listener where to publish the progress, or null to only measure the speed
+     * @param bytesRead how many bytes of the file are downloaded, read from any thread
+     * @param totalBytes the size of the file, or a negative value if unknown
+     */
+    ProgressSampler(DownloadClient.ProgressListener listener, LongSupplier bytesRead,
+            long totalBytes) {
+        mListener = listener;
+        mBytesRead = bytesRead;
+        mTotalBytes = totalBytes;
+    }
+
+    /**
+     * Run the given listener once, on the sampling thread, if the download stops
+     * making progress. Must be set before start().
+     */
+    void setStallListener(Runnable listener) {
+        mStallListener = listener;
+    }
+
+    synchronized void start() {
+        mLastMillis = SystemClock.elapsedRealtime();
+        mLastBytes = mBytesRead.getAsLong();
+        mStallDetector = new StallDetector(mLastBytes);
+        mFuture = sExecutor.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MS,
+                SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the smoothed speed in bytes per second, or -1 until the first sample
+     */
+    long getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Stop publishing the progress. No update is published after this returns.
+     */
+    synchronized void stop() {
+        mStopped = true;
+        if (mFuture != null) {
+            mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Stop publishing the progress and publish it one last time as done.
+     */
+    synchronized void finish(long bytesRead) {
+        stop();
+        if (mListener != null) {
+            mListener.update(bytesRead, mTotalBytes, mSpeed, mEta, true);
+        }
+    }
+
+    private synchronized void sample() {
+        if (mStopped) {
+            return;
+        }
+        final long millis = SystemClock.elapsedRealtime();
+        final long bytes = mBytesRead.getAsLong();
+        final long delta = millis - mLastMillis;
+        if (delta > 0) {
+            final long curSpeed = (bytes - mLastBytes) * 1000 / delta;
+            mSpeed = mSpeed == -1 ? curSpeed : (mSpeed * 3 + curSpeed) / 4;
+            mLastMillis = millis;
+            mLastBytes = bytes;
+        }
+        if (mStallListener != null && mStallDetector.check(bytes, mSpeed)) {
+            mStallListener.run();
+            mStallListener = null;
+        }
+        if (mSpeed > 0 && mTotalBytes >= 0) {
+            mEta = (mTotalBytes - bytes) / mSpeed;
+        }
+        if (mListener != null) {
+            mListener.update(bytes, mTotalBytes, mSpeed, mEta, false);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+/**
+ * Token bucket shared by every download, so that their combined bandwidth stays
+ * under the rate currently allowed. The rate can change at any time, including
+ * while downloads are waiting for tokens.
+ *
+ * Readers take the tokens for what they just read, and wait for the bucket to be
+ * out of debt before reading again. Reads should be no larger than getMaxRead()
+ * so that each wait stays short.
+ */
+final class RateLimiter {
+
+    // How long a full bucket lets readers go at full speed
+    private static final long BURST_MS = 250;
+    private static final int MIN_READ = 8 * 1024;
+
+    private static RateLimiter sInstance;
+
+    private long mRate;
+    private double mTokens;
+    private long mLastRefillNanos = System.nanoTime();
+
+    private RateLimiter() {
+    }
+
+    static synchronized RateLimiter getInstance() {
+        if (sInstance == null) {
+            sInstance = new RateLimiter();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param bytesPerSecond the rate to allow from now on, 0 for no limit
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        refill();
+        mRate = Math.max(0, bytesPerSecond);
+        mTokens = Math.min(mTokens, getBurst());
+        // Let the waiting readers go if they have nothing to wait for anymore
+        notifyAll();
+    }
+
+    synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return how many bytes to read at most before calling acquire()
+     */
+    synchronized int getMaxRead() {
+        return mRate > 0 ? (int) Math.max(MIN_READ, getBurst()) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Take the tokens for the given number of bytes, waiting until the bucket
+     * isn't in debt anymore. An interrupted wait returns early with the interrupted
+     * status set.
+     */
+    synchronized void acquire(long bytes) {
+        if (mRate <= 0) {
+            return;
+        }
+        refill();
+        mTokens -= bytes;
+        while (mRate > 0 && mTokens < 0) {
+            try {
+                wait(Math.max(1, (long) Math.ceil(-mTokens * 1000 / mRate)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            refill();
+        }
+    }
+
+    private long getBurst() {
+        return mRate * BURST_MS / 1000;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        if (mRate > 0) {
+            mTokens = Math.min(getBurst(), mTokens + (now - mLastRefillNanos) * mRate / 1e9);
+        }
+        mLastRefillNanos = now;
+    }
+}
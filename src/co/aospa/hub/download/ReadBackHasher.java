@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+
+/**
+ * Hashes the bytes of a download written out of order by reading them back once
+ * there's no hole before them, on its own thread so that whoever waits for the
+ * writers isn't held up by the storage. Segments other than the first are
+ * written long before the digests get to them, so most of the file is read a
+ * second time and, for large files, no longer from the page cache.
+ */
+final class ReadBackHasher extends Thread {
+
+    private static final String TAG = "ReadBackHasher";
+
+    private final File mFile;
+    private final DigestVerifier mVerifier;
+    private final ChunkManifest mChunks;
+
+    private long mTarget;
+    private long mHashed;
+    private boolean mFinishing;
+    private IOException mError;
+
+    /**
+     * @param verifier the digests to catch up, or null
+     * @param chunks the chunk manifest to update
+     */
+    ReadBackHasher(File file, DigestVerifier verifier, ChunkManifest chunks) {
+        super(TAG);
+        mFile = file;
+        mVerifier = verifier;
+        mChunks = chunks;
+    }
+
+    /**
+     * Let the hashing go on up to the given end, every byte before it is written.
+     */
+    synchronized void advance(long end) {
+        if (end > mTarget) {
+            mTarget = end;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Hash up to the given end and wait until done.
+     *
+     * @throws IOException if the file couldn't be read back
+     */
+    void finish(long end) throws IOException {
+        advance(end);
+        synchronized (this) {
+            mFinishing = true;
+            notifyAll();
+        }
+        joinUninterruptibly();
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Stop hashing right away and wait for the thread to be gone. What wasn't
+     * hashed yet is caught up when the download resumes.
+     */
+    void abort() {
+        interrupt();
+        joinUninterruptibly();
+    }
+
+    private void joinUninterruptibly() {
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                final long end;
+                synchronized (this) {
+                    while (mHashed >= mTarget && !mFinishing) {
+                        wait();
+                    }
+                    if (mHashed >= mTarget) {
+                        return;
+                    }
+                    end = mTarget;
+                }
+                if (mVerifier != null) {
+                    mVerifier.catchUp(mFile, end);
+                }
+                mChunks.update(mFile, end);
+                synchronized (this) {
+                    mHashed = end;
+                }
+            }
+        } catch (InterruptedException | ClosedByInterruptException e) {
+            // Aborted
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read back " + mFile, e);
+            mError = e;
+        }
+    }
+}
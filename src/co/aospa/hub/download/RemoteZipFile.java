@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip on a server with range requests, so that
+ * its entries can be located without downloading it.
+ *
+ * Every request reads ahead and what it returned is kept, so that the reads that
+ * follow each other, such as a local header and the data of a small entry, or the
+ * end of central directory and the directory itself, cost a single request. The
+ * zips of the updates are kept by download id, planning an install doesn't have
+ * to read them again.
+ */
+public final class RemoteZipFile {
+
+    private static final String TAG = "RemoteZipFile";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int MAX_CENTRAL_DIRECTORY_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+    // Most local headers are followed by what's read next
+    private static final int MIN_READ_SIZE = 16 * 1024;
+    private static final int MAX_CACHED_ZIPS = 4;
+    private static final int TIMEOUT_MS = 15000;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+    private static final Map<String, RemoteZipFile> sZips =
+            new LinkedHashMap<String, RemoteZipFile>(MAX_CACHED_ZIPS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RemoteZipFile> eldest) {
+                    return size() > MAX_CACHED_ZIPS;
+                }
+            };
+
+    private final String mSourceUrl;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    // Bytes already fetched, by offset
+    private final TreeMap<Long, byte[]> mRanges = new TreeMap<>();
+    private String mUrl;
+    private long mLength;
+
+    private RemoteZipFile(String url) {
+        mSourceUrl = url;
+        mUrl = url;
+    }
+
+    /**
+     * Read the central directory of the zip at the given url.
+     *
+     * @throws IOException if the server can't serve ranges or the file isn't a zip
+     */
+    public static RemoteZipFile open(String url) throws IOException {
+        RemoteZipFile zip = new RemoteZipFile(url);
+        zip.readCentralDirectory();
+        return zip;
+    }
+
+    /**
+     * Read the central directory of the update with the given download id, unless
+     * it was already read.
+     */
+    public static RemoteZipFile open(String downloadId, String url) throws IOException {
+        synchronized (sZips) {
+            RemoteZipFile zip = sZips.get(downloadId);
+            if (zip != null && zip.mSourceUrl.equals(url)) {
+                return zip;
+            }
+        }
+        RemoteZipFile zip = open(url);
+        synchronized (sZips) {
+            sZips.put(downloadId, zip);
+        }
+        return zip;
+    }
+
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the entry with the given name, or null if there's none
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * @return the offset of the data of the given entry in the zip
+     */
+    public synchronized long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset >= 0) {
+            return entry.mDataOffset;
+        }
+        ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad local header for " + entry.mName);
+        }
+        entry.mDataOffset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        return entry.mDataOffset;
+    }
+
+    /**
+     * @return the uncompressed content of a small entry
+     */
+    public synchronized byte[] getBytes(Entry entry) throws IOException {
+        if (entry.mCompressedSize > MAX_ENTRY_SIZE || entry.mSize > MAX_ENTRY_SIZE) {
+            throw new ZipException(entry.mName + " is too large");
+        }
+        ByteBuffer data = read(getDataOffset(entry), (int) entry.mCompressedSize);
+        byte[] b = new byte[data.remaining()];
+        data.get(b);
+        if (entry.mMethod == Entry.STORED) {
+            return b;
+        } else if (entry.mMethod != Entry.DEFLATED) {
+            throw new ZipException("Unsupported method " + entry.mMethod + " for " + entry.mName);
+        }
+        Inflater inflater = new Inflater(true);
+        try (InputStream inputStream = new InflaterInputStream(
+                new ByteArrayInputStream(b), inflater)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) entry.mSize);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // The end of central directory record is followed by a comment of up to 64 KiB
+        ByteBuffer tail = readTail(EOCD_SIZE + MAX_COMMENT_SIZE + ZIP64_LOCATOR_SIZE);
+        int eocd = tail.limit() - EOCD_SIZE;
+        while (eocd >= 0 && tail.getInt(eocd) != EOCD_SIGNATURE) {
+            eocd--;
+        }
+        if (eocd < 0) {
+            throw new ZipException("No end of central directory in " + mUrl);
+        }
+        long entries = tail.getShort(eocd + 10) & 0xffff;
+        long size = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long offset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        final int locator = eocd - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64 = read(tail.getLong(locator + 8), ZIP64_EOCD_SIZE);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("Bad zip64 end of central directory in " + mUrl);
+            }
+            entries = zip64.getLong(32);
+            size = zip64.getLong(40);
+            offset = zip64.getLong(48);
+        }
+        if (size > MAX_CENTRAL_DIRECTORY_SIZE || offset + size > mLength) {
+            throw new ZipException("Bad central directory in " + mUrl);
+        }
+
+        ByteBuffer directory = read(offset, (int) size);
+        for (long i = 0; i < entries; i++) {
+            final int start = directory.position();
+            if (directory.remaining() < CENTRAL_HEADER_SIZE
+                    || directory.getInt(start) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad central directory entry in " + mUrl);
+            }
+            final int nameLength = directory.getShort(start + 28) & 0xffff;
+            final int extraLength = directory.getShort(start + 30) & 0xffff;
+            final int commentLength = directory.getShort(start + 32) & 0xffff;
+            byte[] name = new byte[nameLength];
+            directory.position(start + CENTRAL_HEADER_SIZE);
+            directory.get(name);
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8),
+                    directory.getShort(start + 10) & 0xffff,
+                    directory.getInt(start + 20) & ZIP64_MAGIC,
+                    directory.getInt(start + 24) & ZIP64_MAGIC,
+                    directory.getInt(start + 42) & ZIP64_MAGIC);
+            readZip64Extra(entry, directory, directory.position(), extraLength);
+            mEntries.put(entry.mName, entry);
+            directory.position(start + CENTRAL_HEADER_SIZE + nameLength + extraLength
+                    + commentLength);
+        }
+        Log.d(TAG, "Read " + mEntries.size() + " entries of " + mUrl);
+    }
+
+    /**
+     * Replace the sizes and offset too large for the central directory entry with
+     * the ones of its zip64 extra field.
+     */
+    private static void readZip64Extra(Entry entry, ByteBuffer directory, int start,
+            int length) {
+        int position = start;
+        while (position + 4 <= start + length) {
+            final int id = directory.getShort(position) & 0xffff;
+            final int size = directory.getShort(position + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_ID) {
+                // Only the values that didn't fit are there, in this order
+                final int end = position + 4 + size;
+                int field = position + 4;
+                if (entry.mSize == ZIP64_MAGIC && field + 8 <= end) {
+                    entry.mSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (entry.mCompressedSize == ZIP64_MAGIC && field + 8 <= end) {
+                    entry.mCompressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (entry.mLocalHeaderOffset == ZIP64_MAGIC && field + 8 <= end) {
+                    entry.mLocalHeaderOffset = directory.getLong(field);
+                }
+                return;
+            }
+            position += 4 + size;
+        }
+    }
+
+    private ByteBuffer readTail(int length) throws IOException {
+        byte[] b = request("bytes=-" + length, length);
+        // A suffix range longer than the file returns all of it
+        mRanges.put(mLength - b.length, b);
+        return wrap(b, 0, b.length);
+    }
+
+    private ByteBuffer read(long start, int length) throws IOException {
+        if (start < 0 || start + length > mLength) {
+            throw new ZipException("Range " + start + "+" + length + " is out of " + mUrl);
+        }
+        Map.Entry<Long, byte[]> range = mRanges.floorEntry(start);
+        if (range == null || range.getKey() + range.getValue().length < start + length) {
+            final long end = Math.min(mLength, start + Math.max(length, MIN_READ_SIZE));
+            byte[] b = request("bytes=" + start + "-" + (end - 1), (int) (end - start));
+            if (b.length < length) {
+                throw new EOFException("Range " + start + "+" + length + " ended early");
+            }
+            mRanges.put(start, b);
+            range = mRanges.floorEntry(start);
+        }
+        return wrap(range.getValue(), (int) (start - range.getKey()), length);
+    }
+
+    private static ByteBuffer wrap(byte[] b, int offset, int length) {
+        return ByteBuffer.wrap(b, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private byte[] request(String range, int length) throws IOException {
+        HttpURLConnection connection = ConnectionManager.getInstance().open(mUrl);
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestProperty("Range", range);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 206) {
+                ConnectionManager.getInstance().discard(connection);
+                throw new HttpStatusException(responseCode);
+            }
+            // Don't go through the redirects again
+            mUrl = connection.getURL().toString();
+            Matcher matcher = CONTENT_RANGE.matcher(
+                    String.valueOf(connection.getHeaderField("Content-Range")));
+            if (!matcher.matches()) {
+                throw new IOException("No length in the reply from " + mUrl);
+            }
+            mLength = Long.parseLong(matcher.group(1));
+            byte[] b = new byte[length];
+            int total = 0;
+            try (InputStream inputStream = connection.getInputStream()) {
+                int count;
+                while (total < length && (count = inputStream.read(b, total, length - total)) > 0) {
+                    total += count;
+                }
+            }
+            return total < length ? Arrays.copyOf(b, total) : b;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public static final class Entry {
+        public static final int STORED = 0;
+        public static final int DEFLATED = 8;
+
+        private final String mName;
+        private final int mMethod;
+        private long mCompressedSize;
+        private long mSize;
+        private long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the compression method, STORED or DEFLATED
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+}
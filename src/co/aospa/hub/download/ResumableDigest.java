@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MD5 and SHA-256 digests whose intermediate state can be saved and restored,
+ * which MessageDigest doesn't allow. This lets a download that is resumed, even
+ * by another process, carry on hashing from where it stopped.
+ */
+abstract class ResumableDigest {
+
+    static final String MD5 = "MD5";
+    static final String SHA_256 = "SHA-256";
+
+    private static final int BLOCK_SIZE = 64;
+
+    private static final String KEY_ALGORITHM = "algorithm";
+    private static final String KEY_COUNT = "count";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_BLOCK = "block";
+
+    private final String mAlgorithm;
+    private final boolean mBigEndian;
+    final int[] mState;
+    private final byte[] mBlock = new byte[BLOCK_SIZE];
+    private final byte[] mScratch = new byte[8192];
+    private long mCount;
+
+    private ResumableDigest(String algorithm, boolean bigEndian, int[] initialState) {
+        mAlgorithm = algorithm;
+        mBigEndian = bigEndian;
+        mState = initialState;
+    }
+
+    static ResumableDigest create(String algorithm) {
+        if (MD5.equals(algorithm)) {
+            return new Md5();
+        } else if (SHA_256.equals(algorithm)) {
+            return new Sha256();
+        }
+        throw new IllegalArgumentException("Unsupported algorithm " + algorithm);
+    }
+
+    /**
+     * Restore a digest saved with save().
+     */
+    static ResumableDigest restore(JSONObject object) throws JSONException {
+        ResumableDigest digest = create(object.getString(KEY_ALGORITHM));
+        digest.mCount = object.getLong(KEY_COUNT);
+        byte[] state = fromHex(object.getString(KEY_STATE));
+        byte[] block = fromHex(object.getString(KEY_BLOCK));
+        if (state.length != digest.mState.length * 4
+                || block.length != (int) (digest.mCount % BLOCK_SIZE)) {
+            throw new JSONException("Invalid " + digest.mAlgorithm + " state");
+        }
+        digest.decode(state, digest.mState);
+        System.arraycopy(block, 0, digest.mBlock, 0, block.length);
+        return digest;
+    }
+
+    JSONObject save() throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put(KEY_ALGORITHM, mAlgorithm);
+        object.put(KEY_COUNT, mCount);
+        object.put(KEY_STATE, toHex(encode(mState), mState.length * 4));
+        object.put(KEY_BLOCK, toHex(mBlock, (int) (mCount % BLOCK_SIZE)));
+        return object;
+    }
+
+    String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * @return how many bytes were hashed so far
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    void update(byte[] input, int offset, int length) {
+        int buffered = (int) (mCount % BLOCK_SIZE);
+        mCount += length;
+        if (buffered > 0) {
+            int needed = Math.min(BLOCK_SIZE - buffered, length);
+            System.arraycopy(input, offset, mBlock, buffered, needed);
+            offset += needed;
+            length -= needed;
+            if (buffered + needed < BLOCK_SIZE) {
+                return;
+            }
+            compress(mBlock, 0);
+        }
+        while (length >= BLOCK_SIZE) {
+            compress(input, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+        System.arraycopy(input, offset, mBlock, 0, length);
+    }
+
+    /**
+     * Hash the remaining bytes of the buffer, without moving its position.
+     */
+    void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer input = buffer.duplicate();
+        while (input.hasRemaining()) {
+            int length = Math.min(mScratch.length, input.remaining());
+            input.get(mScratch, 0, length);
+            update(mScratch, 0, length);
+        }
+    }
+
+    /**
+     * @return the digest of the bytes hashed so far, as lowercase hex. Hashing
+     * can go on afterwards.
+     */
+    String digest() {
+        int buffered = (int) (mCount % BLOCK_SIZE);
+        int padded = buffered < BLOCK_SIZE - 8 ? BLOCK_SIZE : BLOCK_SIZE * 2;
+        byte[] tail = new byte[padded];
+        System.arraycopy(mBlock, 0, tail, 0, buffered);
+        tail[buffered] = (byte) 0x80;
+        long bits = mCount << 3;
+        for (int i = 0; i < 8; i++) {
+            int shift = mBigEndian ? 56 - 8 * i : 8 * i;
+            tail[padded - 8 + i] = (byte) (bits >>> shift);
+        }
+
+        int[] state = mState.clone();
+        for (int i = 0; i < padded; i += BLOCK_SIZE) {
+            compress(tail, i);
+        }
+        byte[] result = encode(mState);
+        System.arraycopy(state, 0, mState, 0, state.length);
+        return toHex(result, result.length);
+    }
+
+    abstract void compress(byte[] block, int offset);
+
+    private byte[] encode(int[] words) {
+        byte[] bytes = new byte[words.length * 4];
+        for (int i = 0; i < bytes.length; i++) {
+            int shift = mBigEndian ? 24 - 8 * (i % 4) : 8 * (i % 4);
+            bytes[i] = (byte) (words[i / 4] >>> shift);
+        }
+        return bytes;
+    }
+
+    private void decode(byte[] bytes, int[] words) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] = 0;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            int shift = mBigEndian ? 24 - 8 * (i % 4) : 8 * (i % 4);
+            words[i / 4] |= (bytes[i] & 0xff) << shift;
+        }
+    }
+
+    private static String toHex(byte[] bytes, int length) {
+        StringBuilder builder = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            builder.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] fromHex(String hex) throws JSONException {
+        if (hex.length() % 2 != 0) {
+            throw new JSONException("Invalid hex string");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new JSONException("Invalid hex string");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private static final class Md5 extends ResumableDigest {
+
+        private static final int[] SHIFTS = {
+                7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21
+        };
+
+        private static final int[] K = new int[64];
+
+        static {
+            for (int i = 0; i < 64; i++) {
+                K[i] = (int) (long) Math.floor(Math.abs(Math.sin(i + 1)) * (1L << 32));
+            }
+        }
+
+        private final int[] mWords = new int[16];
+
+        private Md5() {
+            super(MD5, false, new int[] {
+                    0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476
+            });
+        }
+
+        @Override
+        void compress(byte[] block, int offset) {
+            for (int i = 0; i < 16; i++) {
+                int j = offset + i * 4;
+                mWords[i] = (block[j] & 0xff) | (block[j + 1] & 0xff) << 8
+                        | (block[j + 2] & 0xff) << 16 | (block[j + 3] & 0xff) << 24;
+            }
+            int a = mState[0];
+            int b = mState[1];
+            int c = mState[2];
+            int d = mState[3];
+            for (int i = 0; i < 64; i++) {
+                int f;
+                int g;
+                switch (i / 16) {
+                    case 0:
+                        f = (b & c) | (~b & d);
+                        g = i;
+                        break;
+                    case 1:
+                        f = (d & b) | (~d & c);
+                        g = (5 * i + 1) % 16;
+                        break;
+                    case 2:
+                        f = b ^ c ^ d;
+                        g = (3 * i + 5) % 16;
+                        break;
+                    default:
+                        f = c ^ (b | ~d);
+                        g = (7 * i) % 16;
+                        break;
+                }
+                int rotated = Integer.rotateLeft(a + f + K[i] + mWords[g],
+                        SHIFTS[(i / 16) * 4 + i % 4]);
+                a = d;
+                d = c;
+                c = b;
+                b += rotated;
+            }
+            mState[0] += a;
+            mState[1] += b;
+            mState[2] += c;
+            mState[3] += d;
+        }
+    }
+
+    private static final class Sha256 extends ResumableDigest {
+
+        private static final int[] K = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1,
+                0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+                0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+                0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147,
+                0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+                0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+                0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a,
+                0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+                0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+
+        private final int[] mWords = new int[64];
+
+        private Sha256() {
+            super(SHA_256, true, new int[] {
+                    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+                    0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+            });
+        }
+
+        @Override
+        void compress(byte[] block, int offset) {
+            for (int i = 0; i < 16; i++) {
+                int j = offset + i * 4;
+                mWords[i] = (block[j] & 0xff) << 24 | (block[j + 1] & 0xff) << 16
+                        | (block[j + 2] & 0xff) << 8 | (block[j + 3] & 0xff);
+            }
+            for (int i = 16; i < 64; i++) {
+                int w15 = mWords[i - 15];
+                int w2 = mWords[i - 2];
+                int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+                int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+                mWords[i] = mWords[i - 16] + s0 + mWords[i - 7] + s1;
+            }
+            int a = mState[0];
+            int b = mState[1];
+            int c = mState[2];
+            int d = mState[3];
+            int e = mState[4];
+            int f = mState[5];
+            int g = mState[6];
+            int h = mState[7];
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+                        ^ Integer.rotateRight(e, 25);
+                int ch = (e & f) ^ (~e & g);
+                int t1 = h + s1 + ch + K[i] + mWords[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+                        ^ Integer.rotateRight(a, 22);
+                int maj = (a & b) ^ (a & c) ^ (b & c);
+                int t2 = s0 + maj;
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            mState[0] += a;
+            mState[1] += b;
+            mState[2] += c;
+            mState[3] += d;
+            mState[4] += e;
+            mState[5] += f;
+            mState[6] += g;
+            mState[7] += h;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.UnknownServiceException;
+import java.nio.channels.ClosedChannelException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Tells which download errors are worth retrying and how long to wait before
+ * doing so. Network errors are usually gone after a moment on a flaky link,
+ * while a missing file, a full storage or a server that refuses the request
+ * won't go away by asking again.
+ */
+final class RetryPolicy {
+
+    // Consecutive failures without any progress before giving up
+    static final int MAX_RETRIES = 5;
+
+    private static final long BASE_DELAY_MS = 1000;
+    private static final long MAX_DELAY_MS = 60 * 1000;
+
+    private RetryPolicy() {
+    }
+
+    static boolean isRetryable(IOException e) {
+        if (e instanceof HttpStatusException) {
+            final int statusCode = ((HttpStatusException) e).getStatusCode();
+            // Request timeout, too many requests and server errors
+            return statusCode == 408 || statusCode == 429 || statusCode / 100 == 5;
+        }
+        if (e instanceof FileNotFoundException || e instanceof ClosedChannelException
+                || e instanceof MalformedURLException || e instanceof ProtocolException
+                || e instanceof UnknownServiceException
+                || e instanceof SSLPeerUnverifiedException) {
+            return false;
+        }
+        final Throwable cause = e.getCause();
+        if (cause instanceof CertificateException) {
+            return false;
+        }
+        return !(cause instanceof ErrnoException
+                && ((ErrnoException) cause).errno == OsConstants.ENOSPC);
+    }
+
+    /**
+     * @param retry how many retries were already made since the last progress
+     * @return how long to wait before the next attempt, with some jitter so that
+     * devices that lost the server at the same time don't come back together
+     */
+    static long getDelayMillis(int retry) {
+        final long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(retry, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads a byte range of a file over several connections, possibly to
+ * different mirrors of the same file. Each connection is served by a worker that
+ * owns a segment of the range. Workers that run out of work take over half of
+ * the segment that would finish last, so the bytes naturally move towards the
+ * mirrors that deliver them the fastest.
+ */
+final class SegmentedDownload {
+
+    private static final String TAG = "SegmentedDownload";
+
+    // Don't split segments that would leave less than this to each side
+    private static final long MIN_STEAL_SIZE = 4 * 1024 * 1024;
+
+    private final FileChannel mChannel;
+    // Sorted by start, the segments always cover the whole range
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final List<Worker> mWorkers = new ArrayList<>();
+
+    private static final class Segment {
+        private final long mStart;
+        private volatile long mEnd;
+        private volatile long mPosition;
+        private long mInFlight;
+        private Worker mOwner;
+
+        private Segment(long start, long end) {
+            this(start, end, start);
+        }
+
+        private Segment(long start, long end, long position) {
+            mStart = start;
+            mEnd = end;
+            mPosition = position;
+        }
+
+        private boolean isComplete() {
+            return mPosition >= mEnd;
+        }
+    }
+
+    /**
+     * @param channel where to write the downloaded bytes
+     * @param offset the first byte to download
+     * @param length how many bytes to download
+     * @param count the number of connections to use
+     * @param mirrors the urls to download from, the first one is the primary
+     * @param connection an open connection to the primary url that is serving
+     *                   the range starting at offset, or null
+     */
+    SegmentedDownload(FileChannel channel, long offset, long length, int count,
+            List<URL> mirrors, HttpURLConnection connection) {
+        this(channel, split(offset, length, count), count, mirrors, connection);
+    }
+
+    /**
+     * Carry on with a download that was stopped.
+     *
+     * @param layout the layout of the download when it was stopped, as returned by
+     *               getLayout() and then by resume()
+     * @param count the number of connections to use
+     * @param mirrors the urls to download from, the first one is the primary
+     * @param connection an open connection to the primary url that is serving
+     *                   the range starting at the first segment, or null
+     */
+    SegmentedDownload(FileChannel channel, long[][] layout, int count,
+            List<URL> mirrors, HttpURLConnection connection) {
+        mChannel = channel;
+        for (long[] saved : layout) {
+            Segment segment = new Segment(saved[0], saved[1], saved[2]);
+            mSegments.add(segment);
+            if (segment.isComplete() || mWorkers.size() >= count) {
+                // The workers pick up the segments left once they're done
+                continue;
+            }
+            final int i = mWorkers.size();
+            URL url = mirrors.get(i % mirrors.size());
+            Worker worker = new Worker(url, segment, i == 0 ? connection : null);
+            segment.mOwner = worker;
+            mWorkers.add(worker);
+        }
+    }
+
+    private static long[][] split(long offset, long length, int count) {
+        final long[][] layout = new long[count][];
+        final long segmentSize = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = offset + i * segmentSize;
+            long end = i == count - 1 ? offset + length : start + segmentSize;
+            layout[i] = new long[] { start, end, start };
+        }
+        return layout;
+    }
+
+    /**
+     * @return the start, end and position of every segment, in order. Every byte
+     * between the start and the position of a segment was written to the channel.
+     */
+    synchronized long[][] getLayout() {
+        final long[][] layout = new long[mSegments.size()][];
+        for (int i = 0; i < layout.length; i++) {
+            Segment segment = mSegments.get(i);
+            layout[i] = new long[] { segment.mStart, segment.mEnd, segment.mPosition };
+        }
+        return layout;
+    }
+
+    /**
+     * Fit a saved layout to where the download resumes from. Nothing past that
+     * point in its segment is trusted, but the segments after it are kept.
+     *
+     * @param layout a layout returned by getLayout()
+     * @param offset the first byte to download, which must fall in the layout
+     * @param end the end of the range to download
+     * @return the layout to resume with, or null if the saved one doesn't describe
+     * that range
+     */
+    static long[][] resume(long[][] layout, long offset, long end) {
+        if (layout == null || layout.length == 0 || layout[0][0] > offset
+                || layout[layout.length - 1][1] != end) {
+            return null;
+        }
+        final List<long[]> resumed = new ArrayList<>();
+        long previousEnd = layout[0][0];
+        for (long[] saved : layout) {
+            final long start = saved[0];
+            final long segmentEnd = saved[1];
+            final long position = saved[2];
+            if (start != previousEnd || segmentEnd < start || position < start
+                    || position > segmentEnd) {
+                return null;
+            }
+            previousEnd = segmentEnd;
+            if (segmentEnd <= offset) {
+                continue;
+            } else if (start <= offset) {
+                resumed.add(new long[] { offset, segmentEnd, offset });
+            } else {
+                resumed.add(new long[] { start, segmentEnd, position });
+            }
+        }
+        return resumed.isEmpty() ? null : resumed.toArray(new long[0][]);
+    }
+
+    void start() {
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Wait until every byte is downloaded or no worker is left.
+     *
+     * @return true if the download is over, successfully or not
+     */
+    synchronized boolean await(long millis) throws InterruptedException {
+        if (!isOver()) {
+            wait(millis);
+        }
+        return isOver();
+    }
+
+    synchronized boolean isComplete() {
+        for (Segment segment : mSegments) {
+            if (!segment.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isOver() {
+        if (isComplete()) {
+            return true;
+        }
+        for (Worker worker : mWorkers) {
+            if (!worker.mFinished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getBytesRead() {
+        long read = 0;
+        synchronized (this) {
+            for (Segment segment : mSegments) {
+                read += segment.mPosition - segment.mStart;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * @return the end of the downloaded bytes that have no holes before them
+     */
+    synchronized long getContiguousEnd() {
+        long end = mSegments.get(0).mStart;
+        for (Segment segment : mSegments) {
+            end = segment.mPosition;
+            if (!segment.isComplete()) {
+                break;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Stop all the workers and wait for them to be gone, so that the channel
+     * can be safely used afterwards.
+     */
+    void stop() {
+        for (Worker worker : mWorkers) {
+            worker.abort();
+        }
+        boolean interrupted = false;
+        for (Worker worker : mWorkers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            Log.d(TAG, worker.mUrl.getHost() + " delivered " + worker.mBytes + " bytes at "
+                    + worker.getSpeed() + " B/s");
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reconnect the workers that stopped making progress, they carry on from
+     * where their segment stalled. Only called from a single thread.
+     */
+    void checkStalls() {
+        for (Worker worker : mWorkers) {
+            if (!worker.mFinished
+                    && worker.mStallDetector.check(worker.mBytes, worker.getSpeed())) {
+                Log.w(TAG, worker.mUrl.getHost() + " stalled after " + worker.mBytes
+                        + " bytes, reconnecting");
+                worker.reconnect();
+            }
+        }
+    }
+
+    private synchronized Segment next(Worker worker) {
+        // Segments left behind by failed workers come first
+        for (Segment segment : mSegments) {
+            if (segment.mOwner == null && !segment.isComplete()) {
+                segment.mOwner = worker;
+                return segment;
+            }
+        }
+
+        // Then take over half of the segment that would otherwise finish last
+        Segment victim = null;
+        long victimEta = 0;
+        for (Segment segment : mSegments) {
+            if (segment.mOwner == null || segment.isComplete()) {
+                continue;
+            }
+            long remaining = segment.mEnd - segment.mPosition - segment.mInFlight;
+            long eta = remaining * 1000 / Math.max(1, segment.mOwner.getSpeed());
+            if (remaining >= MIN_STEAL_SIZE * 2 && eta > victimEta) {
+                victim = segment;
+                victimEta = eta;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        // Splitting only pays off if this worker is at least half as fast
+        long speed = worker.getSpeed();
+        if (speed > 0 && speed * 2 < victim.mOwner.getSpeed()) {
+            return null;
+        }
+
+        long claimed = victim.mPosition + victim.mInFlight;
+        long split = claimed + (victim.mEnd - claimed) / 2;
+        Segment segment = new Segment(split, victim.mEnd);
+        segment.mOwner = worker;
+        victim.mEnd = split;
+        mSegments.add(mSegments.indexOf(victim) + 1, segment);
+        Log.d(TAG, worker.mUrl.getHost() + " takes over " + split + "-" + (segment.mEnd - 1)
+                + " from " + victim.mOwner.mUrl.getHost());
+        return segment;
+    }
+
+    private synchronized void release(Segment segment) {
+        if (segment != null) {
+            segment.mOwner = null;
+            segment.mInFlight = 0;
+        }
+    }
+
+    private synchronized void finished(Worker worker) {
+        worker.mFinished = true;
+        notifyAll();
+    }
+
+    private synchronized void segmentComplete() {
+        notifyAll();
+    }
+
+    private class Worker extends Thread {
+
+        private final URL mUrl;
+        private Segment mSegment;
+        private volatile HttpURLConnection mConnection;
+        private volatile boolean mAborted;
+        private volatile boolean mFinished;
+
+        private long mStartMillis;
+        private volatile long mBytes;
+        // Only used by checkStalls()
+        private StallDetector mStallDetector = new StallDetector(0);
+        private volatile boolean mStalled;
+        private int mReconnects;
+        private long mReconnectBytes;
+
+        private Worker(URL url, Segment segment, HttpURLConnection connection) {
+            mUrl = url;
+            mSegment = segment;
+            mConnection = connection;
+        }
+
+        private long getSpeed() {
+            final long elapsed = SystemClock.elapsedRealtime() - mStartMillis;
+            return mBytes == 0 || elapsed <= 0 ? 0 : mBytes * 1000 / elapsed;
+        }
+
+        private void abort() {
+            // Don't interrupt, that would close the channel shared by all the workers
+            mAborted = true;
+            disconnect();
+        }
+
+        /**
+         * Drop the connection, the worker then opens a new one for the rest of its
+         * segment. Nothing to do between two requests, there's no connection that
+         * stalled.
+         */
+        private void reconnect() {
+            mStallDetector = new StallDetector(mBytes);
+            final HttpURLConnection connection;
+            synchronized (this) {
+                connection = mConnection;
+                if (connection == null) {
+                    return;
+                }
+                mStalled = true;
+            }
+            connection.disconnect();
+        }
+
+        private void disconnect() {
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                // Unblocks any pending read
+                connection.disconnect();
+            }
+        }
+
+        private HttpURLConnection connect(Segment segment) throws IOException {
+            HttpURLConnection connection = mConnection;
+            if (connection == null) {
+                final long start = segment.mPosition;
+                final long end = segment.mEnd - 1;
+                connection = ConnectionManager.getInstance().open(mUrl);
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                synchronized (this) {
+                    mConnection = connection;
+                }
+                int responseCode = connection.getResponseCode();
+                if (responseCode != 206) {
+                    ConnectionManager.getInstance().discard(connection);
+                    throw new IOException("Server replied with " + responseCode
+                            + " for range " + start + "-" + end);
+                }
+            }
+            return connection;
+        }
+
+        private void fetch(Segment segment) throws IOException {
+            if (segment.isComplete()) {
+                // Taken over by other workers while reconnecting
+                return;
+            }
+            final BufferPool pool = BufferPool.getInstance();
+            final RateLimiter limiter = RateLimiter.getInstance();
+            ByteBuffer buffer = pool.acquire(BufferPool.sizeFor(getSpeed()));
+            try (InputStream inputStream = connect(segment).getInputStream()) {
+                ReadableByteChannel source = Channels.newChannel(inputStream);
+                while (!mAborted && !segment.isComplete()) {
+                    buffer.limit((int) Math.min(Math.min(buffer.capacity(), limiter.getMaxRead()),
+                            segment.mEnd - segment.mPosition));
+                    int count = BufferPool.fill(source, buffer);
+                    if (count <= 0) {
+                        break;
+                    }
+                    // Another worker might have taken over part of the segment
+                    final int allowed;
+                    synchronized (SegmentedDownload.this) {
+                        allowed = (int) Math.min(count, segment.mEnd - segment.mPosition);
+                        segment.mInFlight = allowed;
+                    }
+                    buffer.flip();
+                    buffer.limit(allowed);
+                    long position = segment.mPosition;
+                    while (buffer.hasRemaining()) {
+                        position += mChannel.write(buffer, position);
+                    }
+                    synchronized (SegmentedDownload.this) {
+                        segment.mPosition = position;
+                        segment.mInFlight = 0;
+                    }
+                    mBytes += allowed;
+                    buffer = pool.resize(buffer, BufferPool.sizeFor(getSpeed()));
+                    limiter.acquire(count);
+                }
+                if (!mAborted && !segment.isComplete()) {
+                    throw new IOException("Segment ended at " + segment.mPosition
+                            + ", expected " + segment.mEnd);
+                }
+            } finally {
+                pool.release(buffer);
+                final HttpURLConnection connection;
+                synchronized (this) {
+                    connection = mConnection;
+                    mConnection = null;
+                }
+                if (connection != null) {
+                    // The rest of the range might not be needed anymore
+                    connection.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            mStartMillis = SystemClock.elapsedRealtime();
+            try {
+                while (!mAborted && mSegment != null) {
+                    try {
+                        fetch(mSegment);
+                    } catch (IOException e) {
+                        if (!mStalled || mAborted) {
+                            throw e;
+                        }
+                        if (mBytes > mReconnectBytes) {
+                            mReconnects = 0;
+                        }
+                        mReconnectBytes = mBytes;
+                        if (++mReconnects > RetryPolicy.MAX_RETRIES) {
+                            throw e;
+                        }
+                        Log.d(TAG, "Reconnecting to " + mUrl.getHost() + " at "
+                                + mSegment.mPosition);
+                        mStalled = false;
+                        continue;
+                    }
+                    // The request was done before the stall was noticed
+                    mStalled = false;
+                    segmentComplete();
+                    mSegment = mAborted ? null : next(this);
+                }
+            } catch (IOException e) {
+                if (!mAborted) {
+                    Log.e(TAG, "Error downloading from " + mUrl.getHost(), e);
+                    // Let the other workers finish the job
+                    release(mSegment);
+                }
+            } finally {
+                finished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+
+/**
+ * Tells when a stream stopped making progress even though its connection is
+ * still open. Bytes are only counted once a whole buffer is read, so the window
+ * progress is judged over grows with the time a buffer takes to fill at the
+ * speed observed so far. A stream is stalled when it delivered next to nothing
+ * over that window compared to what it delivered before, so a link that has
+ * always been slow isn't mistaken for a dead one.
+ */
+final class StallDetector {
+
+    // Used until the speed of the stream is known
+    private static final long INITIAL_WINDOW_MS = 30 * 1000;
+    private static final long MIN_WINDOW_MS = 10 * 1000;
+    private static final long MAX_WINDOW_MS = 120 * 1000;
+    // How many buffers the window should let through at the observed speed
+    private static final int WINDOW_BUFFERS = 4;
+    // Stalled below this fraction of the bytes expected over the window
+    private static final int STALL_RATIO = 16;
+
+    private long mMarkMillis = SystemClock.elapsedRealtime();
+    private long mMarkBytes;
+    private long mMarkSpeed;
+
+    StallDetector(long bytes) {
+        mMarkBytes = bytes;
+    }
+
+    /**
+     * @param bytes how many bytes the stream delivered so far
+     * @param speed the speed of the stream in bytes per second, 0 or less if unknown
+     * @return true if the stream is stalled
+     */
+    boolean check(long bytes, long speed) {
+        final long now = SystemClock.elapsedRealtime();
+        final long window = getWindow(mMarkSpeed);
+        if (now - mMarkMillis < window) {
+            return false;
+        }
+        final long progress = bytes - mMarkBytes;
+        long expectedSpeed = mMarkSpeed;
+        final long rate = RateLimiter.getInstance().getRate();
+        if (rate > 0) {
+            // The limit might have been lowered since
+            expectedSpeed = Math.min(expectedSpeed, rate);
+        }
+        final long expected = expectedSpeed * window / 1000;
+        if (progress <= 0 || progress * STALL_RATIO < expected) {
+            return true;
+        }
+        mMarkMillis = now;
+        mMarkBytes = bytes;
+        mMarkSpeed = speed;
+        return false;
+    }
+
+    /**
+     * @return how long a stream at the given speed may go without progress
+     */
+    static long getWindow(long speed) {
+        if (speed <= 0) {
+            return INITIAL_WINDOW_MS;
+        }
+        final long bufferMillis = BufferPool.sizeFor(speed) * 1000L / speed;
+        return Math.max(MIN_WINDOW_MS, Math.min(MAX_WINDOW_MS, bufferMillis * WINDOW_BUFFERS));
+    }
+}
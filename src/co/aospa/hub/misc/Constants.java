@@ -37,6 +37,8 @@ public final class Constants {
     public static final String PREF_ALLOW_DOWNGRADING = "allow_downgrading";
     public static final String PREF_ALLOW_LOCAL_UPDATES = "allow_local_updates";
     public static final String PREF_ALLOW_BETA_UPDATES = "allow_beta_updates";
+    public static final String PREF_METERED_DOWNLOADS = "metered_downloads";
+    public static final String PREF_PREFETCH_UPDATES = "prefetch_updates";
 
     // Rollout Configuration
     public static final boolean IS_STAGED_ROLLOUT_ENABLED = true;
@@ -53,6 +55,7 @@ public final class Constants {
     public static final String PREF_INSTALL_PACKAGE_PATH = "install_package_path";
     public static final String PREF_INSTALL_AGAIN = "install_again";
     public static final String PREF_INSTALL_NOTIFIED = "install_notified";
+    public static final String PREF_VERIFIED_DOWNLOAD_ID = "verified_download_id";
     public static final long UPDATE_CHECK_INTERVAL = AlarmManager.INTERVAL_HALF_DAY; // 12 hours
 
     // Properties
@@ -65,4 +68,6 @@ public final class Constants {
     public static final String PROP_DEVICE = "ro.aospa.device";
     public static final String PROP_BUILD_TYPE = "ro.aospa.build.variant";
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
+    public static final String CHUNK_MANIFEST_EXT = ".chunks";
+    public static final String BLOCK_MAP_EXT = ".blockmap";
 }
@@ -34,6 +34,7 @@ import android.widget.Toast;
 import androidx.annotation.ColorInt;
 
 import co.aospa.hub.R;
+import co.aospa.hub.download.RemoteZipFile;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.Version;
 import co.aospa.hub.service.UpdateService;
@@ -72,6 +73,26 @@ public class Utils {
         return dir;
     }
 
+    /**
+     * @return the installed update package to download the next one as a delta
+     * against, or null if there's none. The package is only there when the user
+     * chose not to delete updates once installed.
+     */
+    public static File getDeltaSeed(Context context) {
+        if (!context.getResources().getBoolean(R.bool.config_downloadDelta)) {
+            return null;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        long prevTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, 0);
+        String lastUpdatePath = preferences.getString(Constants.PREF_INSTALL_PACKAGE_PATH, null);
+        if (lastUpdatePath == null || Version.getCurrentTimestamp() == prevTimestamp) {
+            // Not installed yet
+            return null;
+        }
+        File seed = new File(lastUpdatePath);
+        return seed.isFile() ? seed : null;
+    }
+
     public static File getCachedUpdateList(Context context) {
         return new File(context.getCacheDir(), "updates.json");
     }
@@ -144,6 +165,24 @@ public class Utils {
         throw new IllegalArgumentException("The given entry was not found");
     }
 
+    /**
+     * Get the offset to the data of a file inside the given zip on the server
+     *
+     * @param zipFile remote zip file
+     * @param entryPath full path of the entry
+     * @return the offset of the data
+     * @throws IllegalArgumentException if the given entry is not found
+     */
+    public static long getZipEntryOffset(RemoteZipFile zipFile, String entryPath)
+            throws IOException {
+        RemoteZipFile.Entry entry = zipFile.getEntry(entryPath);
+        if (entry == null) {
+            Log.e(TAG, "Entry " + entryPath + " not found");
+            throw new IllegalArgumentException("The given entry was not found");
+        }
+        return zipFile.getDataOffset(entry);
+    }
+
     public static void removeUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(
                 (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
@@ -236,6 +275,15 @@ public class Utils {
                 zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
     }
 
+    /**
+     * Tell if an update is A/B from the central directory of its package on the
+     * server, without downloading it.
+     */
+    public static boolean isABUpdate(RemoteZipFile zipFile) {
+        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    }
+
     public static boolean isABUpdate(File file) throws IOException {
         ZipFile zipFile = new ZipFile(file);
         boolean isAB = isABUpdate(zipFile);
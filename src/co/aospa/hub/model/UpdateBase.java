@@ -23,6 +23,7 @@ public class UpdateBase implements UpdateBaseInfo {
     private long mTimestamp;
     private String mVersion;
     private long mFileSize;
+    private String mSha256;
 
     public UpdateBase() {
     }
@@ -34,6 +35,7 @@ public class UpdateBase implements UpdateBaseInfo {
         mTimestamp = update.getTimestamp();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mSha256 = update.getSha256();
     }
 
     @Override
@@ -89,4 +91,13 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
     }
+
+    @Override
+    public String getSha256() {
+        return mSha256;
+    }
+
+    public void setSha256(String sha256) {
+        mSha256 = sha256;
+    }
 }
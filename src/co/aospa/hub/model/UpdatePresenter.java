@@ -51,6 +51,7 @@ public class UpdatePresenter {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setDownloadId(object.getString("md5"));
+        update.setSha256(object.optString("sha256", null));
         return update;
     }
 
@@ -94,6 +95,13 @@ public class UpdatePresenter {
 
     public static Configuration matchMakeConfiguration(File oldConfig, File newConfig)
             throws IOException, JSONException {
+        Configuration config = readConfiguration(newConfig);
+        newConfig.renameTo(oldConfig);
+        return config;
+    }
+
+    public static Configuration readConfiguration(File newConfig)
+            throws IOException, JSONException {
         Configuration config = null;
         String json = "";
         try (BufferedReader br = new BufferedReader(new FileReader(newConfig))) {
@@ -113,7 +121,6 @@ public class UpdatePresenter {
                 Log.d(TAG, "Could not parse configuration object, index=" + i, e);
             }
         }
-        newConfig.renameTo(oldConfig);
         return config;
     }
 
@@ -38,6 +38,7 @@ public class UpdateStatus {
     public static final int LOCAL_UPDATE = 17;
     public static final int LOCAL_UPDATE_FAILED = 18;
     public static final int PREPARING = 19;
+    public static final int INSUFFICIENT_STORAGE = 20;
 
     public static final class Persistent {
         public static final int UNKNOWN = 0;
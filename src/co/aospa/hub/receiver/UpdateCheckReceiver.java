@@ -38,6 +38,7 @@ import co.aospa.hub.model.UpdatePresenter;
 import co.aospa.hub.model.Version;
 import co.aospa.hub.notification.NotificationContract;
 import co.aospa.hub.notification.NotificationContractor;
+import co.aospa.hub.service.PrefetchJobService;
 
 import org.json.JSONException;
 
@@ -194,14 +195,31 @@ public class UpdateCheckReceiver extends BroadcastReceiver implements ClientConn
 
     @Override
     public void onClientStatusSuccess(File oldFile, File newFile) {
+        handleUpdateList(oldFile, newFile);
+    }
+
+    @Override
+    public void onClientStatusNotModified(File cachedFile) {
+        // The update it has may still be waiting to be installed
+        handleUpdateList(cachedFile, cachedFile);
+    }
+
+    /**
+     * @param newFile the update list that was just downloaded, or oldFile itself if
+     * the cached list is still up to date
+     */
+    private void handleUpdateList(File oldFile, File newFile) {
         try {
             final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
             if (oldFile.exists() && UpdatePresenter.isNewUpdate(mContext, oldFile, newFile, mRolloutContractor.isReady())) {
                 Update update = UpdatePresenter.getUpdate();
                 showNotification(mContext, update);
                 updateRepeatingUpdatesCheck(mContext);
+                PrefetchJobService.schedule(mContext);
+            }
+            if (!newFile.equals(oldFile)) {
+                newFile.renameTo(oldFile);
             }
-            newFile.renameTo(oldFile);
             long currentMillis = System.currentTimeMillis();
             prefs.edit()
                     .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
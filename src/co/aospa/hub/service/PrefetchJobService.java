@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import co.aospa.hub.HubController;
+import co.aospa.hub.R;
+import co.aospa.hub.RolloutContractor;
+import co.aospa.hub.misc.Constants;
+import co.aospa.hub.misc.Utils;
+import co.aospa.hub.model.Update;
+import co.aospa.hub.model.UpdateInfo;
+import co.aospa.hub.model.UpdatePresenter;
+import co.aospa.hub.model.UpdateStatus;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Downloads and verifies a new update ahead of time, while the device is idle,
+ * charging and on an unmetered network, so that it can be installed right away
+ * once the user opens the hub.
+ */
+public class PrefetchJobService extends JobService implements HubController.StatusListener {
+
+    private static final String TAG = "PrefetchJobService";
+
+    private static final int JOB_ID = 1;
+
+    private HubController mController;
+    private JobParameters mParams;
+    private String mDownloadId;
+
+    public static boolean isEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.SHARED_PREFERENCES_KEY,
+                Context.MODE_PRIVATE);
+        return prefs.getBoolean(Constants.PREF_PREFETCH_UPDATES,
+                context.getResources().getBoolean(R.bool.config_prefetchUpdatesDefault));
+    }
+
+    /**
+     * Prefetch the update found by the last check once the device allows it, if
+     * the user opted in.
+     */
+    public static void schedule(Context context) {
+        if (!isEnabled(context)) {
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PrefetchJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule the prefetch");
+        } else {
+            Log.d(TAG, "Scheduled the prefetch");
+        }
+    }
+
+    public static void cancel(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!isEnabled(this)) {
+            return false;
+        }
+        UpdateInfo info;
+        try {
+            info = UpdatePresenter.matchMakeJson(this, Utils.getCachedUpdateList(this));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read the updates list", e);
+            return false;
+        }
+        if (info == null) {
+            return false;
+        }
+        mController = HubController.getInstance(this);
+        mDownloadId = info.getDownloadId();
+        if (mController.getUpdate(mDownloadId) == null && !mController.isUpdateAvailable(info,
+                new RolloutContractor(this).isReady(), false)) {
+            Log.d(TAG, "No update to prefetch");
+            return false;
+        }
+        Update update = mController.getActualUpdate(mDownloadId);
+        if (update == null || isDone(update.getStatus())
+                || update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED) {
+            Log.d(TAG, mDownloadId + " doesn't need to be prefetched");
+            return false;
+        }
+        mParams = params;
+        mController.addUpdateStatusListener(this);
+        mController.prefetchDownload(mDownloadId);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Constraints no longer met, pausing " + mDownloadId);
+        mController.removeUpdateStatusListener(this);
+        if (mController.isDownloading(mDownloadId)) {
+            mController.pauseDownload(mDownloadId);
+        }
+        // Resumed from where it stopped next time
+        return true;
+    }
+
+    @Override
+    public void onUpdateStatusChanged(Update update, int state) {
+        if (update == null || state != HubController.STATE_STATUS_CHANGED
+                || !mDownloadId.equals(update.getDownloadId())) {
+            return;
+        }
+        switch (update.getStatus()) {
+            case UpdateStatus.VERIFIED:
+                Log.d(TAG, mDownloadId + " is ready to install");
+                finish(false);
+                break;
+            case UpdateStatus.PAUSED:
+            case UpdateStatus.DOWNLOAD_FAILED:
+            case UpdateStatus.VERIFICATION_FAILED:
+                // Carry on at a later window, with backoff
+                finish(true);
+                break;
+            case UpdateStatus.PAUSED_ERROR:
+            case UpdateStatus.DELETED:
+            case UpdateStatus.INSUFFICIENT_STORAGE:
+                // Needs the user to go further
+                finish(false);
+                break;
+        }
+    }
+
+    private void finish(boolean reschedule) {
+        mController.removeUpdateStatusListener(this);
+        jobFinished(mParams, reschedule);
+    }
+
+    private static boolean isDone(int status) {
+        switch (status) {
+            case UpdateStatus.DOWNLOADED:
+            case UpdateStatus.VERIFYING:
+            case UpdateStatus.VERIFIED:
+            case UpdateStatus.INSTALLING:
+            case UpdateStatus.INSTALLED:
+                return true;
+        }
+        return false;
+    }
+}
@@ -77,6 +77,7 @@ public class UpdateService extends Service implements StatusListener {
         mController = HubController.getInstance(this);
         mNotificationContractor = new NotificationContractor(this);
         mController.addUpdateStatusListener(this);
+        mController.setForeground(false);
     }
 
     public class LocalBinder extends Binder {
@@ -88,12 +89,14 @@ public class UpdateService extends Service implements StatusListener {
     @Override
     public IBinder onBind(Intent intent) {
         mHasClients = true;
+        mController.setForeground(true);
         return mBinder;
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         mHasClients = false;
+        mController.setForeground(false);
         tryStopSelf();
         return false;
     }
@@ -124,6 +127,10 @@ public class UpdateService extends Service implements StatusListener {
             } else {
                 Log.e(TAG, "Unknown download action");
             }
+        } else if (ACTION_INSTALL_UPDATE.equals(intent.getAction())
+                && mController.canInstallStreaming(intent.getStringExtra(EXTRA_DOWNLOAD_ID))) {
+            // Nothing to verify beforehand, update_engine checks the payload itself
+            mController.installStreaming(intent.getStringExtra(EXTRA_DOWNLOAD_ID));
         } else if (ACTION_INSTALL_UPDATE.equals(intent.getAction())) {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
             UpdateInfo update = mController.getUpdate(downloadId);
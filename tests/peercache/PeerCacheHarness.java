@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Runs the peer cache server and a client of it in two processes of the same
+ * host, the way two devices of a local network would use it. See run.sh.
+ *
+ * serve <file> <port file>: share the file on the loopback address, write the
+ * port to the port file once listening, then serve until killed.
+ *
+ * fetch <url> <file>: download the file from the url the way the hub does from
+ * a peer, whole and by ranges, and check what comes back against the file.
+ */
+public final class PeerCacheHarness {
+
+    private static final int TIMEOUT_MS = 2000;
+
+    private static int sFailures;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("serve")) {
+            serve(new File(args[1]), new File(args[2]));
+        } else if (args.length == 3 && args[0].equals("fetch")) {
+            fetch(args[1], new File(args[2]));
+            System.exit(sFailures == 0 ? 0 : 1);
+        } else {
+            System.err.println("Usage: serve <file> <port file> | fetch <url> <file>");
+            System.exit(2);
+        }
+    }
+
+    private static void serve(File file, File portFile) throws IOException {
+        PeerCacheServer server = new PeerCacheServer(new PeerCacheServer.Logger() {
+            @Override
+            public void debug(String message) {
+                System.err.println("server: " + message);
+            }
+
+            @Override
+            public void error(String message, Throwable e) {
+                System.err.println("server: " + message);
+                e.printStackTrace();
+            }
+        });
+        server.share(file);
+        int port = server.start(InetAddress.getLoopbackAddress());
+        File pending = new File(portFile.getPath() + ".tmp");
+        try (PrintStream output = new PrintStream(pending)) {
+            output.println(port);
+        }
+        // Only show the port once it's complete
+        Files.move(pending.toPath(), portFile.toPath());
+    }
+
+    private static void fetch(String url, File file) throws IOException {
+        final long length = file.length();
+        final String missing = url.substring(0, url.lastIndexOf('/') + 1) + "missing.zip";
+
+        check("whole file", url, null, 200, file, 0, length);
+        check("first bytes", url, "bytes=0-1023", 206, file, 0, 1024);
+        check("middle", url, "bytes=1000-" + (length / 2), 206, file, 1000, length / 2 + 1);
+        check("rest of the file", url, "bytes=" + (length - 4096) + "-", 206, file,
+                length - 4096, length);
+        check("suffix", url, "bytes=-100", 206, file, length - 100, length);
+        check("range past the end", url, "bytes=" + (length - 10) + "-" + (length + 100), 206,
+                file, length - 10, length);
+        check("range not satisfiable", url, "bytes=" + length + "-", 416, file, 0, 0);
+        check("unknown file", missing, null, 404, file, 0, 0);
+    }
+
+    /**
+     * Request the url like HttpURLConnectionClient does from a peer, and check the
+     * reply against the given bytes of the file.
+     */
+    private static void check(String name, String url, String range, int expectedCode,
+            File file, long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        try {
+            final int responseCode = connection.getResponseCode();
+            if (responseCode != expectedCode) {
+                fail(name, "replied with " + responseCode + ", expected " + expectedCode);
+                return;
+            }
+            if (responseCode / 100 != 2) {
+                pass(name);
+                return;
+            }
+            if (responseCode == 206) {
+                final String contentRange = "bytes " + start + "-" + (end - 1) + "/"
+                        + file.length();
+                if (!contentRange.equals(connection.getHeaderField("Content-Range"))) {
+                    fail(name, "Content-Range is " + connection.getHeaderField("Content-Range")
+                            + ", expected " + contentRange);
+                    return;
+                }
+            }
+            if (connection.getContentLengthLong() != end - start) {
+                fail(name, "Content-Length is " + connection.getContentLengthLong()
+                        + ", expected " + (end - start));
+                return;
+            }
+            byte[] received;
+            try (InputStream inputStream = connection.getInputStream()) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] b = new byte[8192];
+                int count;
+                while ((count = inputStream.read(b)) > 0) {
+                    output.write(b, 0, count);
+                }
+                received = output.toByteArray();
+            }
+            byte[] expected = new byte[(int) (end - start)];
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                input.seek(start);
+                input.readFully(expected);
+            }
+            if (!Arrays.equals(received, expected)) {
+                fail(name, "received " + received.length + " bytes that don't match the file");
+                return;
+            }
+            pass(name);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void pass(String name) {
+        System.out.println("PASS " + name);
+    }
+
+    private static void fail(String name, String message) {
+        System.out.println("FAIL " + name + ": " + message);
+        sFailures++;
+    }
+}
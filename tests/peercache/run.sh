@@ -0,0 +1,56 @@
+#!/bin/sh
+#
+# Copyright (C) 2020 Paranoid Android
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Shares a file with the peer cache server in one process and downloads it
+# from another one, like two devices of a local network. Only needs a JDK.
+#
+# Usage: tests/peercache/run.sh [size in bytes]
+
+set -e
+
+ROOT=$(cd "$(dirname "$0")/../.." && pwd)
+SIZE=${1:-20000000}
+WORK=$(mktemp -d)
+SERVER=
+
+cleanup() {
+    if [ -n "$SERVER" ]; then
+        kill "$SERVER" 2>/dev/null || true
+    fi
+    rm -rf "$WORK"
+}
+trap cleanup EXIT
+
+javac -d "$WORK/classes" \
+    "$ROOT/src/co/aospa/hub/download/PeerCacheServer.java" \
+    "$ROOT/tests/peercache/PeerCacheHarness.java"
+head -c "$SIZE" /dev/urandom > "$WORK/update.zip"
+
+java -cp "$WORK/classes" co.aospa.hub.download.PeerCacheHarness \
+    serve "$WORK/update.zip" "$WORK/port" &
+SERVER=$!
+
+for i in $(seq 50); do
+    [ -f "$WORK/port" ] && break
+    sleep 0.1
+done
+if [ ! -f "$WORK/port" ]; then
+    echo "The server didn't start" >&2
+    exit 1
+fi
+
+java -cp "$WORK/classes" co.aospa.hub.download.PeerCacheHarness \
+    fetch "http://127.0.0.1:$(cat "$WORK/port")/update.zip" "$WORK/update.zip"